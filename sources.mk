@@ -1,8 +1,18 @@
 
 SRCS=	org/akrieger/Nethrar/BlockData.java \
+	org/akrieger/Nethrar/ChunkPortalScanner.java \
+	org/akrieger/Nethrar/ChunkPrewarmer.java \
+	org/akrieger/Nethrar/Coords.java \
+	org/akrieger/Nethrar/CounterpartSearch.java \
+	org/akrieger/Nethrar/DormantPortals.java \
+	org/akrieger/Nethrar/InvalidFrameCache.java \
+	org/akrieger/Nethrar/LongHashMap.java \
+	org/akrieger/Nethrar/LongIntMap.java \
 	org/akrieger/Nethrar/Nethrar.java \
+	org/akrieger/Nethrar/NethrarBlockListener.java \
 	org/akrieger/Nethrar/NethrarCommandExecutor.java \
 	org/akrieger/Nethrar/NethrarMinecartTeleportEvent.java \
+	org/akrieger/Nethrar/NethrarPlayerState.java \
 	org/akrieger/Nethrar/NethrarDefaultListener.java \
 	org/akrieger/Nethrar/NethrarRespawnListener.java \
 	org/akrieger/Nethrar/NethrarTeleporter.java \
@@ -10,4 +20,10 @@ SRCS=	org/akrieger/Nethrar/BlockData.java \
 	org/akrieger/Nethrar/NethrarVehicleListener.java \
 	org/akrieger/Nethrar/NethrarWorldListener.java \
 	org/akrieger/Nethrar/Portal.java \
-	org/akrieger/Nethrar/PortalUtil.java
+	org/akrieger/Nethrar/PortalJournal.java \
+	org/akrieger/Nethrar/PortalRecord.java \
+	org/akrieger/Nethrar/PortalRegistry.java \
+	org/akrieger/Nethrar/PortalStore.java \
+	org/akrieger/Nethrar/ProtectedBlockSet.java \
+	org/akrieger/Nethrar/PortalUtil.java \
+	org/akrieger/Nethrar/TeleportCooldowns.java
@@ -6,34 +6,46 @@ package org.akrieger.Nethrar;
 
 import org.bukkit.Material;
 
+/**
+ * Immutable material and data value pair.
+ *
+ * The pair is also packed into a single int, (ordinal << 8) | data, which is
+ * used as its hash and as the key for primitive lookup tables.
+ */
 public class BlockData implements Comparable {
 
-    public Material m;
-    public byte data;
+    public final Material m;
+    public final byte data;
+    private final int key;
 
     public BlockData(Material m, byte data) {
         this.m = m; this.data = data;
+        this.key = pack(m, data);
+    }
+
+    /** Packs the given material and data value into an int key. */
+    public static int pack(Material m, byte data) {
+        return (m.ordinal() << 8) | (data & 0xFF);
+    }
+
+    /** Returns the packed (ordinal << 8) | data key for this pair. */
+    public int getKey() {
+        return this.key;
     }
 
     public int compareTo(Object o) {
         BlockData bd = (BlockData)o;
-        int diff = this.m.ordinal() - bd.m.ordinal();
-        if (diff != 0) {
-            return diff;
-        }
-        diff = this.data - bd.data;
-        return diff;
+        return this.key < bd.key ? -1 : (this.key == bd.key ? 0 : 1);
     }
 
     public boolean equals(Object o) {
         if (!(o instanceof BlockData)) {
             return false;
         }
-        BlockData other = (BlockData)o;
-        return this.m.equals(other.m) && this.data == other.data;
+        return this.key == ((BlockData)o).key;
     }
 
     public int hashCode() {
-        return Integer.parseInt(this.m.ordinal() + "00" + this.data);
+        return this.key;
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.Arrays;
+
+/**
+ * Scans a chunk snapshot for portal blocks.
+ *
+ * Meant to be run asynchronously. Once the scan is done, the result is
+ * handed back to PortalUtil on the main thread, where it feeds the chunk
+ * filter used by the movement listeners, and the portals found are
+ * registered so that counterpart searches can find them.
+ *
+ * @author Andrew Krieger
+ */
+public class ChunkPortalScanner implements Runnable {
+
+  private static final int PORTAL_ID = Material.PORTAL.getId();
+
+  private final ChunkSnapshot snapshot;
+  private final World world;
+  private final int maxHeight;
+
+  public ChunkPortalScanner(ChunkSnapshot snapshot, World world,
+                            int maxHeight) {
+    this.snapshot = snapshot;
+    this.world = world;
+    this.maxHeight = maxHeight;
+  }
+
+  public void run() {
+    final long[] found = findKeyBlocks();
+    final int chunkX = this.snapshot.getX();
+    final int chunkZ = this.snapshot.getZ();
+    Bukkit.getServer().getScheduler().scheduleSyncDelayedTask(
+      PortalUtil.getPlugin(),
+      new Runnable() {
+        public void run() {
+          PortalUtil.chunkScanned(world, chunkX, chunkZ, found);
+        }
+      }
+    );
+  }
+
+  /**
+   * Returns the packed coordinates (see Coords) of the portal blocks that
+   * may be keyblocks: those with no portal block below them, or before them
+   * along either axis within the chunk.
+   */
+  private long[] findKeyBlocks() {
+    long[] found = new long[4];
+    int count = 0;
+    int baseX = this.snapshot.getX() << 4, baseZ = this.snapshot.getZ() << 4;
+    for (int x = 0; x < 16; x++) {
+      for (int z = 0; z < 16; z++) {
+        for (int y = 0; y < this.maxHeight; y++) {
+          if (this.snapshot.getBlockTypeId(x, y, z) == PORTAL_ID &&
+              !isPortal(x, y - 1, z) && !isPortal(x - 1, y, z) &&
+              !isPortal(x, y, z - 1)) {
+            if (count == found.length) {
+              found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = Coords.blockKey(baseX + x, y, baseZ + z);
+          }
+        }
+      }
+    }
+    return Arrays.copyOf(found, count);
+  }
+
+  private boolean isPortal(int x, int y, int z) {
+    return x >= 0 && y >= 0 && z >= 0 &&
+      this.snapshot.getBlockTypeId(x, y, z) == PORTAL_ID;
+  }
+}
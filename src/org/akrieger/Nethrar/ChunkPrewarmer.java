@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.World;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Logger;
+
+/**
+ * Loads chunks ahead of when they are needed.
+ *
+ * Chunks are loaded asynchronously where the server supports it (through
+ * World.getChunkAtAsync, which is looked up reflectively since Bukkit does
+ * not have it). Otherwise they are queued and loaded on the main thread, a
+ * few each tick, spending no more than a set amount of time per tick after
+ * the first chunk. Chunks that are already loaded or queued are skipped.
+ *
+ * @author Andrew Krieger
+ */
+public class ChunkPrewarmer {
+
+  private static class Request {
+    final World world;
+    final int chunkX, chunkZ;
+
+    Request(World world, int chunkX, int chunkZ) {
+      this.world = world;
+      this.chunkX = chunkX;
+      this.chunkZ = chunkZ;
+    }
+  }
+
+  private static final Logger log = Logger.getLogger("Minecraft.Nethrar");
+
+  private final Queue<Request> queue = new ArrayDeque<Request>();
+  private final Map<World, LongIntMap> queued =
+    new HashMap<World, LongIntMap>();
+  private final long budgetNanos;
+  // World.getChunkAtAsync(int, int), or null if the server does not have it.
+  private Method asyncLoad;
+
+  /**
+   * @param budgetMillis How long to spend loading queued chunks each tick.
+   */
+  public ChunkPrewarmer(long budgetMillis) {
+    this.budgetNanos = budgetMillis * 1000000L;
+    try {
+      this.asyncLoad =
+        World.class.getMethod("getChunkAtAsync", int.class, int.class);
+    } catch (NoSuchMethodException e) {
+      this.asyncLoad = null;
+    }
+  }
+
+  public boolean isAsync() {
+    return this.asyncLoad != null;
+  }
+
+  /** Starts loading the given chunk, if it is not loaded already. */
+  public void request(World w, int chunkX, int chunkZ) {
+    if (w.isChunkLoaded(chunkX, chunkZ)) {
+      return;
+    }
+    if (this.asyncLoad != null) {
+      try {
+        this.asyncLoad.invoke(w, chunkX, chunkZ);
+        return;
+      } catch (Exception e) {
+        log.warning("[NETHRAR] Could not load chunks asynchronously, " +
+                    "loading them on the main thread instead: " + e);
+        this.asyncLoad = null;
+      }
+    }
+
+    LongIntMap worldQueued = this.queued.get(w);
+    if (worldQueued == null) {
+      worldQueued = new LongIntMap();
+      this.queued.put(w, worldQueued);
+    }
+    long key = Coords.chunkKey(chunkX, chunkZ);
+    if (!worldQueued.containsKey(key)) {
+      worldQueued.put(key, 1);
+      this.queue.add(new Request(w, chunkX, chunkZ));
+    }
+  }
+
+  /**
+   * Loads queued chunks until the time budget for this tick is spent. Must
+   * be called on the main thread.
+   */
+  public void tick() {
+    if (this.queue.isEmpty()) {
+      return;
+    }
+    long deadline = System.nanoTime() + this.budgetNanos;
+    do {
+      Request r = this.queue.poll();
+      LongIntMap worldQueued = this.queued.get(r.world);
+      worldQueued.remove(Coords.chunkKey(r.chunkX, r.chunkZ));
+      if (worldQueued.isEmpty()) {
+        this.queued.remove(r.world);
+      }
+      if (!r.world.isChunkLoaded(r.chunkX, r.chunkZ)) {
+        r.world.loadChunk(r.chunkX, r.chunkZ);
+      }
+    } while (!this.queue.isEmpty() && System.nanoTime() < deadline);
+  }
+
+  /** Drops the queued chunks in the given world. */
+  public void removeWorld(World w) {
+    if (this.queued.remove(w) == null) {
+      return;
+    }
+    for (Iterator<Request> it = this.queue.iterator(); it.hasNext();) {
+      if (it.next().world == w) {
+        it.remove();
+      }
+    }
+  }
+
+  public int size() {
+    return this.queue.size();
+  }
+}
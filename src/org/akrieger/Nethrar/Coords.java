@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.block.Block;
+
+/**
+ * Helpers for packing block and chunk coordinates into primitive longs.
+ *
+ * Block keys hold 26 bits each of x and z and 12 bits of y, which covers the
+ * whole +-30 million block world border. Chunk keys hold the chunk x in the
+ * upper half and the chunk z in the lower half.
+ *
+ * @author Andrew Krieger
+ */
+public final class Coords {
+
+  private Coords() { }
+
+  public static long blockKey(int x, int y, int z) {
+    return ((long)x << 38) |
+      (((long)z & 0x3FFFFFFL) << 12) |
+      ((long)y & 0xFFFL);
+  }
+
+  public static long blockKey(Block b) {
+    return blockKey(b.getX(), b.getY(), b.getZ());
+  }
+
+  public static int blockX(long key) {
+    return (int)(key >> 38);
+  }
+
+  public static int blockY(long key) {
+    return (int)(key << 52 >> 52);
+  }
+
+  public static int blockZ(long key) {
+    return (int)(key << 26 >> 38);
+  }
+
+  public static long chunkKey(int chunkX, int chunkZ) {
+    return ((long)chunkX << 32) | ((long)chunkZ & 0xFFFFFFFFL);
+  }
+
+  /** Returns the chunk key of the chunk containing the given block coords. */
+  public static long chunkKeyAt(int blockX, int blockZ) {
+    return chunkKey(blockX >> 4, blockZ >> 4);
+  }
+
+  public static int chunkX(long key) {
+    return (int)(key >> 32);
+  }
+
+  public static int chunkZ(long key) {
+    return (int)key;
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Vehicle;
+import org.bukkit.util.Vector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds a portal's counterpart over chunk snapshots.
+ *
+ * A search is set up on the main thread with the keyblocks of the portals
+ * that could be the counterpart, the parts of the search regions in chunks
+ * that have not been scanned for portals (which may hold portals that were
+ * never registered), and the spot where one would be built. Once
+ * every chunk around them is loaded, snapshots of those chunks are taken and
+ * the search runs asynchronously. It picks the nearest candidate that is
+ * still a lit portal, or else any portal already at the building spot, and
+ * hands the result back to PortalUtil on the main thread, which links the
+ * portals and builds the counterpart if needed. Entities that enter the
+ * portal meanwhile are held there until it is done, and then sent through.
+ *
+ * @author Andrew Krieger
+ */
+public class CounterpartSearch implements Runnable {
+
+  /** Results of a search. */
+  public static final int FOUND_CANDIDATE = 1;
+  public static final int FOUND_PORTAL_BLOCK = 2;
+  public static final int BUILD = 3;
+
+  /** An entity held at the source portal, and the vehicle stopped for it. */
+  public static class HeldEntity {
+    public final Entity entity;
+    public final Vehicle vehicle;
+    public final Vector velocity;
+    public final Location location;
+
+    HeldEntity(Entity entity, Vehicle vehicle) {
+      this.entity = entity;
+      this.vehicle = vehicle;
+      this.velocity = vehicle == null ? null : vehicle.getVelocity();
+      this.location = entity.getLocation();
+    }
+  }
+
+  // Held entities that drift further than this from where they were held
+  // are put back.
+  private static final double PIN_SLACK = 0.5;
+
+  private static final int PORTAL_ID = Material.PORTAL.getId();
+  private static final int OBSIDIAN_ID = Material.OBSIDIAN.getId();
+
+  public final Portal source;
+  public final World destWorld;
+  public final long startTick;
+  public final int siteX, siteY, siteZ;
+  private final double targetX, targetY, targetZ;
+  // Candidate keyblocks, as x, y, z triples.
+  private final int[] candidates;
+  // Regions to look for unregistered portals in, as {minX, minY, minZ,
+  // maxX, maxY, maxZ}.
+  private final List<int[]> unscanned;
+  private final boolean facingNorth;
+  private final int maxHeight;
+  private final long[] chunks;
+  private final List<HeldEntity> held = new ArrayList<HeldEntity>(1);
+
+  // Set on the main thread before the search is run.
+  private LongHashMap<ChunkSnapshot> snapshots;
+  // Set by run(), and read on the main thread once handed back.
+  private int result = 0;
+  private int resultX, resultY, resultZ;
+
+  /**
+   * @param target The point the source portal maps to in destWorld. The
+   *     nearest candidate to it is chosen.
+   * @param candidates Keyblocks of the portals that could be the
+   *     counterpart, as x, y, z triples.
+   * @param unscanned Regions, as {minX, minY, minZ, maxX, maxY, maxZ}, to
+   *     look for other portals in.
+   */
+  public CounterpartSearch(Portal source, World destWorld, long startTick,
+                           double[] target, int siteX, int siteY, int siteZ,
+                           int[] candidates, List<int[]> unscanned) {
+    this.source = source;
+    this.destWorld = destWorld;
+    this.startTick = startTick;
+    this.targetX = target[0];
+    this.targetY = target[1];
+    this.targetZ = target[2];
+    this.siteX = siteX;
+    this.siteY = siteY;
+    this.siteZ = siteZ;
+    this.candidates = candidates;
+    this.unscanned = unscanned;
+    this.facingNorth = source.isFacingNorth();
+    this.maxHeight = destWorld.getMaxHeight();
+
+    // A portal's frame reaches one block before its keyblock and two after,
+    // along either axis.
+    LongIntMap needed = new LongIntMap();
+    addChunksAround(needed, siteX, siteZ);
+    for (int i = 0; i < candidates.length; i += 3) {
+      addChunksAround(needed, candidates[i], candidates[i + 2]);
+    }
+    for (int[] box : unscanned) {
+      // Portals found in a region may reach out of it.
+      addChunksAround(needed, box[0], box[2]);
+      addChunksAround(needed, box[3], box[5]);
+    }
+    this.chunks = needed.keys();
+  }
+
+  private static void addChunksAround(LongIntMap needed, int x, int z) {
+    for (int cx = (x - 1) >> 4; cx <= (x + 2) >> 4; cx++) {
+      for (int cz = (z - 1) >> 4; cz <= (z + 2) >> 4; cz++) {
+        needed.put(Coords.chunkKey(cx, cz), 1);
+      }
+    }
+  }
+
+  /** Holds the given entity, stopping the vehicle it is or rides, if any. */
+  public void hold(Entity e, Vehicle vehicle) {
+    this.held.add(new HeldEntity(e, vehicle));
+    if (vehicle != null) {
+      vehicle.setVelocity(new Vector(0, 0, 0));
+    }
+  }
+
+  /**
+   * Keeps the held entities where they are: vehicles are stopped again, and
+   * mobs and other entities that have drifted are put back. Players are
+   * kept in place by the move listener. Must be called every tick on the
+   * main thread.
+   */
+  public void pinHeld() {
+    for (HeldEntity h : this.held) {
+      if (h.vehicle != null) {
+        if (!h.vehicle.isDead()) {
+          h.vehicle.setVelocity(new Vector(0, 0, 0));
+        }
+        continue;
+      }
+      Entity e = h.entity;
+      if (e instanceof Player || e.isDead() ||
+          e.getWorld() != h.location.getWorld()) {
+        continue;
+      }
+      e.setVelocity(new Vector(0, 0, 0));
+      if (e.getLocation().distanceSquared(h.location) >
+          PIN_SLACK * PIN_SLACK) {
+        e.teleport(h.location);
+      }
+    }
+  }
+
+  public List<HeldEntity> getHeld() {
+    return this.held;
+  }
+
+  public boolean isStarted() {
+    return this.snapshots != null;
+  }
+
+  /**
+   * Takes snapshots of the chunks the search needs, if they are all loaded.
+   * Chunks that are not loaded are requested from the prewarmer instead.
+   * Returns whether the snapshots were taken, after which the search can be
+   * run. Must be called on the main thread.
+   */
+  public boolean takeSnapshots(ChunkPrewarmer prewarmer) {
+    boolean loaded = true;
+    for (long key : this.chunks) {
+      int cx = Coords.chunkX(key), cz = Coords.chunkZ(key);
+      if (!this.destWorld.isChunkLoaded(cx, cz)) {
+        prewarmer.request(this.destWorld, cx, cz);
+        loaded = false;
+      }
+    }
+    if (!loaded) {
+      return false;
+    }
+
+    LongHashMap<ChunkSnapshot> taken =
+      new LongHashMap<ChunkSnapshot>(this.chunks.length);
+    for (long key : this.chunks) {
+      taken.put(key, this.destWorld.getChunkAt(
+        Coords.chunkX(key), Coords.chunkZ(key)).getChunkSnapshot());
+    }
+    this.snapshots = taken;
+    return true;
+  }
+
+  public void run() {
+    double minDistSquared = Double.MAX_VALUE;
+    int[] found = findUnregistered();
+    for (int[] keyBlocks : new int[][] {this.candidates, found}) {
+      for (int i = 0; i < keyBlocks.length; i += 3) {
+        int x = keyBlocks[i], y = keyBlocks[i + 1], z = keyBlocks[i + 2];
+        if (!isPortalAt(x, y, z)) {
+          continue;
+        }
+        double dx = x - this.targetX, dy = y - this.targetY;
+        double dz = z - this.targetZ;
+        double distSquared = dx * dx + dy * dy + dz * dz;
+        if (distSquared < minDistSquared) {
+          minDistSquared = distSquared;
+          setResult(FOUND_CANDIDATE, x, y, z);
+        }
+      }
+    }
+    if (this.result == 0 && !findPortalBlockAtSite()) {
+      setResult(BUILD, this.siteX, this.siteY, this.siteZ);
+    }
+
+    final CounterpartSearch search = this;
+    Bukkit.getServer().getScheduler().scheduleSyncDelayedTask(
+      PortalUtil.getPlugin(),
+      new Runnable() {
+        public void run() {
+          PortalUtil.counterpartSearchDone(search);
+        }
+      }
+    );
+  }
+
+  private void setResult(int type, int x, int y, int z) {
+    this.result = type;
+    this.resultX = x;
+    this.resultY = y;
+    this.resultZ = z;
+  }
+
+  /**
+   * Returns what the search found: FOUND_CANDIDATE or FOUND_PORTAL_BLOCK,
+   * with the block at getResultX/Y/Z, or BUILD.
+   */
+  public int getResult() {
+    return this.result;
+  }
+
+  public int getResultX() {
+    return this.resultX;
+  }
+
+  public int getResultY() {
+    return this.resultY;
+  }
+
+  public int getResultZ() {
+    return this.resultZ;
+  }
+
+  /**
+   * Returns the keyblocks, as x, y, z triples, of the portals with portal
+   * blocks in the unscanned regions. The keyblock is found the same way
+   * PortalUtil.getPortalAt finds it.
+   */
+  private int[] findUnregistered() {
+    LongIntMap keyBlocks = new LongIntMap();
+    for (int[] box : this.unscanned) {
+      for (int x = box[0]; x <= box[3]; x++) {
+        for (int z = box[2]; z <= box[5]; z++) {
+          for (int y = box[1]; y <= box[4]; y++) {
+            if (typeAt(x, y, z) != PORTAL_ID) {
+              continue;
+            }
+            int kx = x, ky = y, kz = z;
+            while (typeAt(kx - 1, ky, kz) == PORTAL_ID) {
+              kx--;
+            }
+            while (typeAt(kx, ky, kz - 1) == PORTAL_ID) {
+              kz--;
+            }
+            while (typeAt(kx, ky - 1, kz) == PORTAL_ID) {
+              ky--;
+            }
+            keyBlocks.put(Coords.blockKey(kx, ky, kz), 1);
+          }
+        }
+      }
+    }
+    long[] keys = keyBlocks.keys();
+    int[] result = new int[keys.length * 3];
+    for (int i = 0; i < keys.length; i++) {
+      result[i * 3] = Coords.blockX(keys[i]);
+      result[i * 3 + 1] = Coords.blockY(keys[i]);
+      result[i * 3 + 2] = Coords.blockZ(keys[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether there is a lit portal with its keyblock at the given
+   * coordinates in the snapshots. This is the same test as Portal.isValid.
+   */
+  private boolean isPortalAt(int x, int y, int z) {
+    boolean north = typeAt(x, y, z - 1) == PORTAL_ID ||
+      typeAt(x, y, z + 1) == PORTAL_ID;
+    return hasBlocksAt(x, y, z, north, Portal.PORTAL_BLOCK_OFFSETS,
+                       PORTAL_ID) &&
+      hasBlocksAt(x, y, z, north, Portal.FRAME_BLOCK_OFFSETS, OBSIDIAN_ID);
+  }
+
+  private boolean hasBlocksAt(int x, int y, int z, boolean north,
+                              int[] offsets, int typeId) {
+    for (int i = 0; i < offsets.length; i += 2) {
+      int along = offsets[i], up = offsets[i + 1];
+      int bx = north ? x : x + along;
+      int bz = north ? z + along : z;
+      if (typeAt(bx, y + up, bz) != typeId) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Looks for portal blocks where a portal would be built, in the blocks
+   * getOrCreatePortalAt checks: the inside of the portal, the blocks on
+   * either side of it, and its frame.
+   */
+  private boolean findPortalBlockAtSite() {
+    for (int along = -1; along <= 2; along++) {
+      for (int up = -1; up <= 3; up++) {
+        boolean inside = along >= 0 && along <= 1 && up >= 0 && up <= 2;
+        for (int across = inside ? -1 : 0; across <= (inside ? 1 : 0);
+             across++) {
+
+          int x = this.facingNorth ? this.siteX + across : this.siteX + along;
+          int y = this.siteY + up;
+          int z = this.facingNorth ? this.siteZ + along : this.siteZ + across;
+          if (typeAt(x, y, z) == PORTAL_ID) {
+            setResult(FOUND_PORTAL_BLOCK, x, y, z);
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private int typeAt(int x, int y, int z) {
+    if (y < 0 || y >= this.maxHeight) {
+      return -1;
+    }
+    ChunkSnapshot snapshot = this.snapshots.get(Coords.chunkKeyAt(x, z));
+    if (snapshot == null) {
+      return -1;
+    }
+    return snapshot.getBlockTypeId(x & 15, y, z & 15);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saved portals that have not been activated yet.
+ *
+ * Saved portals are only validated and registered once the chunks around
+ * them are loaded, so that loading the portal store does not load every
+ * chunk with a portal in it. Until then they are kept here as records,
+ * bucketed by world name and by the chunk their keyblock is in, and indexed
+ * by id so that links to them can be resolved.
+ *
+ * @author Andrew Krieger
+ */
+public class DormantPortals {
+
+  private final Map<String, LongHashMap<List<PortalRecord>>> byChunk =
+    new HashMap<String, LongHashMap<List<PortalRecord>>>();
+  private final LongHashMap<PortalRecord> byId =
+    new LongHashMap<PortalRecord>();
+
+  public void add(PortalRecord r) {
+    PortalRecord old = this.byId.put(r.id, r);
+    if (old != null) {
+      unbucket(old);
+    }
+    LongHashMap<List<PortalRecord>> worldBuckets =
+      this.byChunk.get(r.worldName);
+    if (worldBuckets == null) {
+      worldBuckets = new LongHashMap<List<PortalRecord>>();
+      this.byChunk.put(r.worldName, worldBuckets);
+    }
+    long chunkKey = Coords.chunkKeyAt(r.x, r.z);
+    List<PortalRecord> bucket = worldBuckets.get(chunkKey);
+    if (bucket == null) {
+      bucket = new ArrayList<PortalRecord>(2);
+      worldBuckets.put(chunkKey, bucket);
+    }
+    bucket.add(r);
+  }
+
+  public PortalRecord get(int id) {
+    return this.byId.get(id);
+  }
+
+  /** Returns the record whose keyblock is at the given coordinates. */
+  public PortalRecord getAt(String worldName, int x, int y, int z) {
+    LongHashMap<List<PortalRecord>> worldBuckets = this.byChunk.get(worldName);
+    if (worldBuckets == null) {
+      return null;
+    }
+    List<PortalRecord> bucket = worldBuckets.get(Coords.chunkKeyAt(x, z));
+    if (bucket == null) {
+      return null;
+    }
+    for (int i = 0; i < bucket.size(); i++) {
+      PortalRecord r = bucket.get(i);
+      if (r.x == x && r.y == y && r.z == z) {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  /** Removes the record with the given id, returning it. */
+  public PortalRecord remove(int id) {
+    PortalRecord r = this.byId.remove(id);
+    if (r != null) {
+      unbucket(r);
+    }
+    return r;
+  }
+
+  private void unbucket(PortalRecord r) {
+    LongHashMap<List<PortalRecord>> worldBuckets =
+      this.byChunk.get(r.worldName);
+    long chunkKey = Coords.chunkKeyAt(r.x, r.z);
+    List<PortalRecord> bucket = worldBuckets.get(chunkKey);
+    bucket.remove(r);
+    if (bucket.isEmpty()) {
+      worldBuckets.remove(chunkKey);
+      if (worldBuckets.isEmpty()) {
+        this.byChunk.remove(r.worldName);
+      }
+    }
+  }
+
+  /**
+   * Returns the records whose keyblocks are in the XZ region, and which have
+   * any portal block in the Y range. All bounds are inclusive.
+   */
+  public List<PortalRecord> getInRegion(String worldName,
+                                        int minX, int minY, int minZ,
+                                        int maxX, int maxY, int maxZ) {
+
+    List<PortalRecord> result = new ArrayList<PortalRecord>();
+    LongHashMap<List<PortalRecord>> worldBuckets = this.byChunk.get(worldName);
+    if (worldBuckets == null) {
+      return result;
+    }
+    for (int cx = minX >> 4, endcx = maxX >> 4; cx <= endcx; cx++) {
+      for (int cz = minZ >> 4, endcz = maxZ >> 4; cz <= endcz; cz++) {
+        List<PortalRecord> bucket = worldBuckets.get(Coords.chunkKey(cx, cz));
+        if (bucket == null) {
+          continue;
+        }
+        for (PortalRecord r : bucket) {
+          if (r.x >= minX && r.x <= maxX && r.z >= minZ && r.z <= maxZ &&
+              r.y + 2 >= minY && r.y <= maxY) {
+            result.add(r);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the records whose keyblocks are in the given chunk or the chunks
+   * next to it, which are the records whose frames may reach into it.
+   */
+  public List<PortalRecord> getAround(String worldName, int chunkX,
+                                      int chunkZ) {
+    List<PortalRecord> result = new ArrayList<PortalRecord>();
+    LongHashMap<List<PortalRecord>> worldBuckets = this.byChunk.get(worldName);
+    if (worldBuckets == null) {
+      return result;
+    }
+    for (int cx = chunkX - 1; cx <= chunkX + 1; cx++) {
+      for (int cz = chunkZ - 1; cz <= chunkZ + 1; cz++) {
+        List<PortalRecord> bucket = worldBuckets.get(Coords.chunkKey(cx, cz));
+        if (bucket != null) {
+          result.addAll(bucket);
+        }
+      }
+    }
+    return result;
+  }
+
+  public int size() {
+    return this.byId.size();
+  }
+
+  /** Returns the dormant records in the given world. */
+  public List<PortalRecord> getRecords(String worldName) {
+    List<PortalRecord> result = new ArrayList<PortalRecord>();
+    LongHashMap<List<PortalRecord>> worldBuckets = this.byChunk.get(worldName);
+    if (worldBuckets != null) {
+      for (List<PortalRecord> bucket : worldBuckets.values()) {
+        result.addAll(bucket);
+      }
+    }
+    return result;
+  }
+
+  /** Forgets every dormant record in the given world. */
+  public void removeWorld(String worldName) {
+    LongHashMap<List<PortalRecord>> worldBuckets =
+      this.byChunk.remove(worldName);
+    if (worldBuckets == null) {
+      return;
+    }
+    for (List<PortalRecord> bucket : worldBuckets.values()) {
+      for (PortalRecord r : bucket) {
+        this.byId.remove(r.id);
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of portal blocks known to belong to invalid portal frames.
+ *
+ * This is a direct-mapped table of packed block coordinates (see Coords): a
+ * lookup is a single probe, and an insert simply evicts whatever was in its
+ * slot. Entries are dropped when blocks near them change, since that may
+ * have made the frame valid. The entries are also kept in buckets by chunk,
+ * so a change only looks at the entries in the few chunks within reach of
+ * it, and none at all for the chunks without entries.
+ *
+ * @author Andrew Krieger
+ */
+public class InvalidFrameCache {
+
+  // Packs to x = -2^25, which is outside of the world border.
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  // How far, in blocks, a change may be from a cached block and still affect
+  // the frame it is in.
+  private static final int REACH = 4;
+
+  /** The cached keys in one chunk. */
+  private static class Bucket {
+    long[] keys = new long[4];
+    int size;
+
+    void add(long key) {
+      if (this.size == this.keys.length) {
+        this.keys = Arrays.copyOf(this.keys, this.size * 2);
+      }
+      this.keys[this.size++] = key;
+    }
+
+    void remove(long key) {
+      for (int i = 0; i < this.size; i++) {
+        if (this.keys[i] == key) {
+          this.keys[i] = this.keys[--this.size];
+          return;
+        }
+      }
+    }
+  }
+
+  private final long[] slots;
+  private final int mask;
+  private int size;
+  private final LongHashMap<Bucket> byChunk = new LongHashMap<Bucket>();
+
+  public InvalidFrameCache(int capacity) {
+    int actual = 1;
+    while (actual < capacity) {
+      actual <<= 1;
+    }
+    this.slots = new long[actual];
+    this.mask = actual - 1;
+    Arrays.fill(this.slots, EMPTY);
+  }
+
+  private int slotFor(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32)) & this.mask;
+  }
+
+  public boolean contains(long key) {
+    return this.slots[slotFor(key)] == key;
+  }
+
+  public void add(long key) {
+    int slot = slotFor(key);
+    long old = this.slots[slot];
+    if (old == key) {
+      return;
+    }
+    if (old == EMPTY) {
+      this.size++;
+    } else {
+      removeFromBucket(old);
+    }
+    this.slots[slot] = key;
+
+    long chunkKey = chunkKeyOf(key);
+    Bucket bucket = this.byChunk.get(chunkKey);
+    if (bucket == null) {
+      bucket = new Bucket();
+      this.byChunk.put(chunkKey, bucket);
+    }
+    bucket.add(key);
+  }
+
+  /** Drops every entry within reach of the given block coordinates. */
+  public void invalidateNear(int x, int y, int z) {
+    if (this.size == 0) {
+      return;
+    }
+    for (int cx = (x - REACH) >> 4; cx <= (x + REACH) >> 4; cx++) {
+      for (int cz = (z - REACH) >> 4; cz <= (z + REACH) >> 4; cz++) {
+        long chunkKey = Coords.chunkKey(cx, cz);
+        Bucket bucket = this.byChunk.get(chunkKey);
+        if (bucket == null) {
+          continue;
+        }
+        // Backwards, so that the entry moved into a removed one's place has
+        // already been looked at.
+        for (int i = bucket.size - 1; i >= 0; i--) {
+          long key = bucket.keys[i];
+          if (Math.abs(Coords.blockX(key) - x) <= REACH &&
+              Math.abs(Coords.blockY(key) - y) <= REACH &&
+              Math.abs(Coords.blockZ(key) - z) <= REACH) {
+            this.slots[slotFor(key)] = EMPTY;
+            this.size--;
+            bucket.keys[i] = bucket.keys[--bucket.size];
+          }
+        }
+        if (bucket.size == 0) {
+          this.byChunk.remove(chunkKey);
+        }
+      }
+    }
+  }
+
+  private void removeFromBucket(long key) {
+    long chunkKey = chunkKeyOf(key);
+    Bucket bucket = this.byChunk.get(chunkKey);
+    if (bucket == null) {
+      return;
+    }
+    bucket.remove(key);
+    if (bucket.size == 0) {
+      this.byChunk.remove(chunkKey);
+    }
+  }
+
+  private static long chunkKeyOf(long key) {
+    return Coords.chunkKeyAt(Coords.blockX(key), Coords.blockZ(key));
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing hash map from primitive longs to objects.
+ *
+ * Used for the hot-path lookups keyed by packed coordinates (see Coords), so
+ * that probing the map neither boxes the key nor allocates. Not thread safe.
+ *
+ * @author Andrew Krieger
+ */
+public class LongHashMap<V> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private boolean[] used;
+  private int size;
+  private int mask;
+  private int resizeAt;
+
+  public LongHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LongHashMap(int expected) {
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity * 3 / 4 < expected) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    this.keys = new long[capacity];
+    this.values = new Object[capacity];
+    this.used = new boolean[capacity];
+    this.mask = capacity - 1;
+    this.resizeAt = capacity * 3 / 4;
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private int indexOf(long key) {
+    int i = mix(key) & this.mask;
+    while (this.used[i]) {
+      if (this.keys[i] == key) {
+        return i;
+      }
+      i = (i + 1) & this.mask;
+    }
+    return -1;
+  }
+
+  /** Returns the value for the given key, or null if there is none. */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int i = indexOf(key);
+    return i < 0 ? null : (V)this.values[i];
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /** Maps key to value, returning the previous value, or null. */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    int i = mix(key) & this.mask;
+    while (this.used[i]) {
+      if (this.keys[i] == key) {
+        V old = (V)this.values[i];
+        this.values[i] = value;
+        return old;
+      }
+      i = (i + 1) & this.mask;
+    }
+    this.used[i] = true;
+    this.keys[i] = key;
+    this.values[i] = value;
+    if (++this.size > this.resizeAt) {
+      rehash(this.keys.length << 1);
+    }
+    return null;
+  }
+
+  /** Removes the mapping for key, returning the old value, or null. */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    V old = (V)this.values[i];
+    this.size--;
+
+    // Backward-shift deletion, so probe chains stay intact without
+    // tombstones.
+    int hole = i;
+    int j = i;
+    while (true) {
+      j = (j + 1) & this.mask;
+      if (!this.used[j]) {
+        break;
+      }
+      int home = mix(this.keys[j]) & this.mask;
+      if (((j - home) & this.mask) >= ((j - hole) & this.mask)) {
+        this.keys[hole] = this.keys[j];
+        this.values[hole] = this.values[j];
+        hole = j;
+      }
+    }
+    this.used[hole] = false;
+    this.values[hole] = null;
+    return old;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(this.used, false);
+    Arrays.fill(this.values, null);
+    this.size = 0;
+  }
+
+  /** Returns a copy of the keys currently in the map. */
+  public long[] keys() {
+    long[] result = new long[this.size];
+    int n = 0;
+    for (int i = 0; i < this.keys.length; i++) {
+      if (this.used[i]) {
+        result[n++] = this.keys[i];
+      }
+    }
+    return result;
+  }
+
+  /** Returns a copy of the values currently in the map. */
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> result = new ArrayList<V>(this.size);
+    for (int i = 0; i < this.keys.length; i++) {
+      if (this.used[i]) {
+        result.add((V)this.values[i]);
+      }
+    }
+    return result;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = this.keys;
+    Object[] oldValues = this.values;
+    boolean[] oldUsed = this.used;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int j = mix(oldKeys[i]) & this.mask;
+        while (this.used[j]) {
+          j = (j + 1) & this.mask;
+        }
+        this.used[j] = true;
+        this.keys[j] = oldKeys[i];
+        this.values[j] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive longs to primitive ints.
+ *
+ * The int counterpart of LongHashMap, used for counters and flags keyed by
+ * packed coordinates (see Coords). Not thread safe.
+ *
+ * @author Andrew Krieger
+ */
+public class LongIntMap {
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int size;
+  private int mask;
+  private int resizeAt;
+
+  public LongIntMap() {
+    allocate(DEFAULT_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    this.keys = new long[capacity];
+    this.values = new int[capacity];
+    this.used = new boolean[capacity];
+    this.mask = capacity - 1;
+    this.resizeAt = capacity * 3 / 4;
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private int indexOf(long key) {
+    int i = mix(key) & this.mask;
+    while (this.used[i]) {
+      if (this.keys[i] == key) {
+        return i;
+      }
+      i = (i + 1) & this.mask;
+    }
+    return -1;
+  }
+
+  /** Returns the value for key, or defaultValue if there is none. */
+  public int get(long key, int defaultValue) {
+    int i = indexOf(key);
+    return i < 0 ? defaultValue : this.values[i];
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  public void put(long key, int value) {
+    int i = mix(key) & this.mask;
+    while (this.used[i]) {
+      if (this.keys[i] == key) {
+        this.values[i] = value;
+        return;
+      }
+      i = (i + 1) & this.mask;
+    }
+    this.used[i] = true;
+    this.keys[i] = key;
+    this.values[i] = value;
+    if (++this.size > this.resizeAt) {
+      rehash(this.keys.length << 1);
+    }
+  }
+
+  /**
+   * Adds delta to the value for key, treating a missing key as 0. The key is
+   * removed if its value drops to 0 or below. Returns the new value.
+   */
+  public int add(long key, int delta) {
+    int value = get(key, 0) + delta;
+    if (value > 0) {
+      put(key, value);
+    } else {
+      remove(key);
+    }
+    return value;
+  }
+
+  /** Removes the mapping for key, returning whether there was one. */
+  public boolean remove(long key) {
+    int i = indexOf(key);
+    if (i < 0) {
+      return false;
+    }
+    this.size--;
+
+    // Backward-shift deletion, as in LongHashMap.
+    int hole = i;
+    int j = i;
+    while (true) {
+      j = (j + 1) & this.mask;
+      if (!this.used[j]) {
+        break;
+      }
+      int home = mix(this.keys[j]) & this.mask;
+      if (((j - home) & this.mask) >= ((j - hole) & this.mask)) {
+        this.keys[hole] = this.keys[j];
+        this.values[hole] = this.values[j];
+        hole = j;
+      }
+    }
+    this.used[hole] = false;
+    return true;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(this.used, false);
+    this.size = 0;
+  }
+
+  /** Returns a copy of the keys currently in the map. */
+  public long[] keys() {
+    long[] result = new long[this.size];
+    int n = 0;
+    for (int i = 0; i < this.keys.length; i++) {
+      if (this.used[i]) {
+        result[n++] = this.keys[i];
+      }
+    }
+    return result;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = this.keys;
+    int[] oldValues = this.values;
+    boolean[] oldUsed = this.used;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int j = mix(oldKeys[i]) & this.mask;
+        while (this.used[j]) {
+          j = (j + 1) & this.mask;
+        }
+        this.used[j] = true;
+        this.keys[j] = oldKeys[i];
+        this.values[j] = oldValues[i];
+      }
+    }
+  }
+}
@@ -23,7 +23,8 @@ import java.util.logging.Level;
  *
  * Currently supports custom names for the normal world and nether world,
  * whether or not to capture respawn events, radius of chunks to keep loaded in
- * memory, and whether to teleport riderless vehicles or not.
+ * memory, whether to teleport riderless vehicles or not, and teleport
+ * cooldowns in ticks for each kind of entity.
  *
  * @author akrieger
  */
@@ -39,6 +40,9 @@ public class Nethrar extends JavaPlugin {
   private final NethrarWorldListener worldListener =
     new NethrarWorldListener();
 
+  private final NethrarBlockListener blockListener =
+    new NethrarBlockListener();
+
   private final NethrarDefaultListener defaultListener =
     new NethrarDefaultListener(this);
 
@@ -67,6 +71,8 @@ public class Nethrar extends JavaPlugin {
     }
 
     pm.registerEvents(defaultListener, this);
+    pm.registerEvents(blockListener, this);
+    pm.registerEvents(worldListener, this);
 
     getCommand("nethrar").setExecutor(commandExecutor);
 
@@ -86,12 +92,27 @@ public class Nethrar extends JavaPlugin {
       log.info("[NETHRAR] Not listening for player respawns.");
     }
 
+    int playerCooldown = c.getInt("cooldownTicks.player", 10);
+    int vehicleCooldown = c.getInt("cooldownTicks.vehicle", 10);
+    int mobCooldown = c.getInt("cooldownTicks.mob", 100);
+    int otherCooldown = c.getInt("cooldownTicks.other", 10);
+    PortalUtil.setCooldownTicks(
+      playerCooldown, vehicleCooldown, mobCooldown, otherCooldown);
+
+    int autosaveSeconds = c.getInt("autosaveSeconds", 300);
+    PortalUtil.setAutosaveSeconds(autosaveSeconds);
+
+    int prewarmRadius = c.getInt("prewarmRadius", 16);
+    int prewarmMillis = c.getInt("prewarmMillisPerTick", 5);
+    PortalUtil.setPrewarmLimits(prewarmRadius, prewarmMillis);
+
     int keepAliveRadius;
     keepAliveRadius = c.getInt("forceLoadRadius", 0);
+    int keepAliveSeconds = c.getInt("forceLoadSeconds", 300);
+    int keepAliveMaxChunks = c.getInt("forceLoadMaxChunks", 0);
+    PortalUtil.setKeepAliveLimits(keepAliveSeconds, keepAliveMaxChunks);
 
     if (keepAliveRadius > 0) {
-      pm.registerEvents(worldListener, this);
-
       log.info("[NETHRAR] Forcing chunks to stay loaded in a radius of " +
                keepAliveRadius + " around portals.");
     } else if (riderlessVehicles) {
@@ -115,6 +136,15 @@ public class Nethrar extends JavaPlugin {
     c.set("riderlessVehicles", riderlessVehicles);
     c.set("listen.respawn", listenForRespawns);
     c.set("forceLoadRadius", keepAliveRadius);
+    c.set("forceLoadSeconds", keepAliveSeconds);
+    c.set("forceLoadMaxChunks", keepAliveMaxChunks);
+    c.set("cooldownTicks.player", playerCooldown);
+    c.set("cooldownTicks.vehicle", vehicleCooldown);
+    c.set("cooldownTicks.mob", mobCooldown);
+    c.set("cooldownTicks.other", otherCooldown);
+    c.set("autosaveSeconds", autosaveSeconds);
+    c.set("prewarmRadius", prewarmRadius);
+    c.set("prewarmMillisPerTick", prewarmMillis);
     c.set("debugLevel", debugLevel);
 
     saveConfig();
@@ -137,15 +167,10 @@ public class Nethrar extends JavaPlugin {
   }
 
   public void onDisable() {
-    try {
-      if (!PortalUtil.savePortals()) {
-        throw new IllegalArgumentException("");
-      }
-      log.info("[NETHRAR] Portal saving successful.");
-    } catch (Exception e) {
-      log.severe("[NETHRAR] Unable to save portals. All links will be " +
-                 "broken on reload.");
-    }
+    // Portal changes are journaled as they happen, so there is nothing left
+    // to save beyond what is still being written.
+    PortalUtil.shutdown();
+    NethrarPlayerState.clear();
     singleton = null;
   }
 
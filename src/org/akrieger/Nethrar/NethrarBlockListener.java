@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+
+/**
+ * Block Listener object for the Portals plugin.
+ *
+ * This class watches for changes to blocks in and around portals. Changes
+ * are passed on to PortalUtil so that cached portal state is refreshed. The
+ * top corners of a frame, which route the portal, can be any block, so every
+ * way a block can change is watched, not only those of obsidian and portal
+ * blocks. Portals whose obsidian or portal blocks are destroyed are
+ * deregistered right away instead of the next time someone tries to use
+ * them.
+ *
+ * @author Andrew Krieger
+ */
+public class NethrarBlockListener implements Listener {
+
+  private static final int PORTAL_ID = Material.PORTAL.getId();
+  private static final int OBSIDIAN_ID = Material.OBSIDIAN.getId();
+
+  public NethrarBlockListener() { }
+
+  private static boolean isPortalMaterial(Block b) {
+    int id = b.getTypeId();
+    return id == PORTAL_ID || id == OBSIDIAN_ID;
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockBreak(BlockBreakEvent event) {
+    Block b = event.getBlock();
+    PortalUtil.blockChanged(b);
+    if (isPortalMaterial(b)) {
+      PortalUtil.removePortalsUsing(b);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockPlace(BlockPlaceEvent event) {
+    PortalUtil.blockChanged(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityExplode(EntityExplodeEvent event) {
+    for (Block b : event.blockList()) {
+      PortalUtil.blockChanged(b);
+      if (isPortalMaterial(b)) {
+        PortalUtil.removePortalsUsing(b);
+      }
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockBurn(BlockBurnEvent event) {
+    PortalUtil.blockChanged(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockFade(BlockFadeEvent event) {
+    PortalUtil.blockChanged(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockForm(BlockFormEvent event) {
+    PortalUtil.blockChanged(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onLeavesDecay(LeavesDecayEvent event) {
+    PortalUtil.blockChanged(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+    // Falling blocks landing or lifting off, endermen, and the like.
+    PortalUtil.blockChanged(event.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockPistonExtend(BlockPistonExtendEvent event) {
+    BlockFace direction = event.getDirection();
+    // The piston head, and every pushed block where it was and where it
+    // ends up.
+    PortalUtil.blockChanged(event.getBlock().getRelative(direction));
+    for (Block b : event.getBlocks()) {
+      PortalUtil.blockChanged(b);
+      PortalUtil.blockChanged(b.getRelative(direction));
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockPistonRetract(BlockPistonRetractEvent event) {
+    PortalUtil.blockChanged(
+      event.getBlock().getRelative(event.getDirection()));
+    if (event.isSticky()) {
+      PortalUtil.blockChanged(event.getRetractLocation().getBlock());
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockPhysics(BlockPhysicsEvent event) {
+    Block b = event.getBlock();
+    // Physics updates on portal blocks are how portals go out, but most of
+    // them change nothing, so only check the portal again next tick.
+    if (b.getTypeId() == PORTAL_ID) {
+      PortalUtil.recheckPortalsUsing(b);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockFromTo(BlockFromToEvent event) {
+    Block to = event.getToBlock();
+    PortalUtil.blockChanged(to);
+    if (isPortalMaterial(to)) {
+      PortalUtil.recheckPortalsUsing(to);
+    }
+  }
+}
@@ -6,6 +6,7 @@ package org.akrieger.Nethrar;
 
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Entity;
@@ -18,12 +19,18 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityPortalEnterEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.world.PortalCreateEvent;
 import org.bukkit.block.Block;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -32,14 +39,17 @@ import java.util.logging.Logger;
  * This class listens for PlayerMoveEvents to determine whether a player hit
  * a portal and should be teleported. It also listens for BlockPhysics events
  * for protecting Portals in case of teleporting to the End, since we want to
- * keep portals alive.
+ * keep portals alive, and for PortalCreateEvents to register newly lit
+ * portals.
  *
  * @author Andrew Krieger
  */
 public class NethrarDefaultListener implements Listener {
   private final Logger log = Logger.getLogger("Minecraft.Nethrar");
 
-  private static Set<Block> protectedPortalBlocks = new HashSet<Block>();
+  private static Map<World, ProtectedBlockSet> protectedPortalBlocks =
+    new HashMap<World, ProtectedBlockSet>();
+  private static int protectedPortalBlockCount = 0;
 
   private Nethrar plugin;
 
@@ -67,18 +77,57 @@ public class NethrarDefaultListener implements Listener {
   @EventHandler
   public void onPlayerMove(PlayerMoveEvent event) {
     Block b;
+    Location from = event.getFrom();
+    Location to = event.getTo();
+
+    // Most move events are only the player looking around, or moving within
+    // the same block. Portals are only entered by crossing into a block.
+    if (from.getBlockX() == to.getBlockX() &&
+        from.getBlockY() == to.getBlockY() &&
+        from.getBlockZ() == to.getBlockZ() &&
+        from.getWorld() == to.getWorld()) {
+
+      return;
+    }
+
     Player player = event.getPlayer();
+    if (PortalUtil.isHeld(player)) {
+      // Keep the player in the portal until its counterpart is found.
+      Location held = from.clone();
+      held.setYaw(to.getYaw());
+      held.setPitch(to.getPitch());
+      event.setTo(held);
+      return;
+    }
 
-    if (this.plugin.shouldUsePermissions() &&
-        !player.hasPermission("nethrar.use")) {
+    int dy = player.isInsideVehicle() ? 1 : 0;
+    NethrarPlayerState state = NethrarPlayerState.get(player);
 
+    if (!state.moveTo(
+          to.getWorld(),
+          Coords.blockKey(to.getBlockX(), to.getBlockY() + dy,
+                          to.getBlockZ()))) {
+      // Already checked this block.
       return;
     }
 
-    if (!event.getPlayer().isInsideVehicle()) {
-      b = event.getTo().getBlock();
+    if (this.plugin.shouldUsePermissions() && !state.canUse(player)) {
+
+      return;
+    }
+
+    PortalUtil.prewarmFor(from, to);
+
+    if (!PortalUtil.mayHavePortalAt(to.getWorld(), to.getBlockX(),
+                                    to.getBlockZ())) {
+      // No portals in this chunk.
+      return;
+    }
+
+    if (dy == 0) {
+      b = to.getBlock();
     } else {
-      b = event.getTo().getBlock().getRelative(BlockFace.UP);
+      b = to.getBlock().getRelative(BlockFace.UP);
     }
 
     if (!b.getType().equals(Material.PORTAL)) {
@@ -100,17 +149,83 @@ public class NethrarDefaultListener implements Listener {
     }
   }
 
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPortalCreate(PortalCreateEvent event) {
+    // The portal blocks are only placed after the event returns, so register
+    // the portal on the next tick.
+    final List<Block> blocks = new ArrayList<Block>(event.getBlocks());
+    this.plugin.getServer().getScheduler().scheduleSyncDelayedTask(
+      this.plugin,
+      new Runnable() {
+        public void run() {
+          PortalUtil.registerPortalIn(blocks);
+        }
+      }
+    );
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerJoin(PlayerJoinEvent event) {
+    NethrarPlayerState.invalidatePermissions(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    NethrarPlayerState.invalidatePermissions(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    NethrarPlayerState.remove(event.getPlayer());
+  }
+
   public static boolean protectPortalBlock(Block b) {
     if (!b.getType().equals(Material.PORTAL)) {
       return false;
     }
-    protectedPortalBlocks.add(b);
+    ProtectedBlockSet blocks = protectedPortalBlocks.get(b.getWorld());
+    if (blocks == null) {
+      blocks = new ProtectedBlockSet();
+      protectedPortalBlocks.put(b.getWorld(), blocks);
+    }
+    if (blocks.add(b.getX(), b.getY(), b.getZ())) {
+      protectedPortalBlockCount++;
+    }
     return true;
   }
 
+  /** Stops protecting the portal blocks of the given Portal. */
+  public static void unprotectPortal(Portal p) {
+    if (protectedPortalBlockCount == 0) {
+      return;
+    }
+    World w = p.getKeyBlock().getWorld();
+    ProtectedBlockSet blocks = protectedPortalBlocks.get(w);
+    if (blocks == null) {
+      return;
+    }
+    int[] offsets = Portal.PORTAL_BLOCK_OFFSETS;
+    for (int i = 0; i < offsets.length; i += 2) {
+      long key = p.blockKeyAt(offsets[i], offsets[i + 1]);
+      if (blocks.remove(Coords.blockX(key), Coords.blockY(key),
+                        Coords.blockZ(key))) {
+        protectedPortalBlockCount--;
+      }
+    }
+    if (blocks.isEmpty()) {
+      protectedPortalBlocks.remove(w);
+    }
+  }
+
   @EventHandler
   public void onBlockPhysics(BlockPhysicsEvent event) {
-    if (protectedPortalBlocks.contains(event.getBlock())) {
+    if (protectedPortalBlockCount == 0) {
+      // Nothing is protected, which is the usual case.
+      return;
+    }
+    Block b = event.getBlock();
+    ProtectedBlockSet blocks = protectedPortalBlocks.get(b.getWorld());
+    if (blocks != null && blocks.contains(b.getX(), b.getY(), b.getZ())) {
       event.setCancelled(true);
     }
   }
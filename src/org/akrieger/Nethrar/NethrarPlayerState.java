@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-player state cached by the movement listener.
+ *
+ * States are keyed by entity id rather than by Player, so that no references
+ * to players are kept, and are dropped when the player quits.
+ *
+ * Permission decisions are cached here too, so that the permission backend
+ * is not consulted on every move. They are dropped when the player joins or
+ * changes worlds, and, since Bukkit has no event for permission changes,
+ * re-checked after PERMISSION_CACHE_TICKS. Plugins that change permissions
+ * can call invalidatePermissions() to have them re-checked right away.
+ *
+ * @author Andrew Krieger
+ */
+public class NethrarPlayerState {
+
+  private static final LongHashMap<NethrarPlayerState> states =
+    new LongHashMap<NethrarPlayerState>();
+
+  private static final long PERMISSION_CACHE_TICKS = 200;
+
+  private static final byte UNKNOWN = 0;
+  private static final byte ALLOWED = 1;
+  private static final byte DENIED = 2;
+
+  // The block the player's last move event was checked for a portal at.
+  private World lastWorld;
+  private long lastBlockKey;
+
+  // Cached permission decisions, and the tick they were made at.
+  private byte canUse = UNKNOWN;
+  private final Map<World, Boolean> blockedFrom =
+    new HashMap<World, Boolean>();
+  private long permissionsCheckedAt;
+
+  private NethrarPlayerState() { }
+
+  /** Returns the state for the given player, creating it if needed. */
+  public static NethrarPlayerState get(Player p) {
+    NethrarPlayerState state = states.get(p.getEntityId());
+    if (state == null) {
+      state = new NethrarPlayerState();
+      states.put(p.getEntityId(), state);
+    }
+    return state;
+  }
+
+  /** Forgets the state for the given player. */
+  public static void remove(Player p) {
+    states.remove(p.getEntityId());
+  }
+
+  public static void clear() {
+    states.clear();
+  }
+
+  /** Drops the given player's cached permission decisions. */
+  public static void invalidatePermissions(Player p) {
+    NethrarPlayerState state = states.get(p.getEntityId());
+    if (state != null) {
+      state.dropPermissions();
+    }
+  }
+
+  private void dropPermissions() {
+    this.canUse = UNKNOWN;
+    this.blockedFrom.clear();
+  }
+
+  private void expirePermissions() {
+    long now = PortalUtil.getCurrentTick();
+    if (now - this.permissionsCheckedAt > PERMISSION_CACHE_TICKS) {
+      dropPermissions();
+      this.permissionsCheckedAt = now;
+    }
+  }
+
+  /** Returns whether the player has nethrar.use. */
+  public boolean canUse(Player p) {
+    expirePermissions();
+    if (this.canUse == UNKNOWN) {
+      this.canUse = p.hasPermission("nethrar.use") ? ALLOWED : DENIED;
+    }
+    return this.canUse == ALLOWED;
+  }
+
+  /**
+   * Returns whether the player is blocked from traveling to the given world
+   * by its nethrar.block node. Ops are never blocked.
+   */
+  public boolean isBlockedFrom(Player p, World w) {
+    expirePermissions();
+    Boolean blocked = this.blockedFrom.get(w);
+    if (blocked == null) {
+      blocked = p.hasPermission(PortalUtil.getBlockPermissionFor(w)) &&
+        !p.isOp();
+      this.blockedFrom.put(w, blocked);
+    }
+    return blocked;
+  }
+
+  /**
+   * Records that the player is now at the given block, returning false if
+   * that is the block they were last checked at.
+   */
+  public boolean moveTo(World w, long blockKey) {
+    if (this.lastWorld == w && this.lastBlockKey == blockKey) {
+      return false;
+    }
+    this.lastWorld = w;
+    this.lastBlockKey = blockKey;
+    return true;
+  }
+}
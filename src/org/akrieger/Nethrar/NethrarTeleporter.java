@@ -86,7 +86,7 @@ public class NethrarTeleporter implements Runnable {
                         return;
                     }
                     eNew.setHealth(((LivingEntity)e).getHealth());
-                    PortalUtil.markTeleported(eNew, 5 * 1000000000l); // 5 second delay for animals
+                    PortalUtil.markTeleported(eNew);
                     teleportSuccess = true;
                     e.remove();
                 }
@@ -4,7 +4,9 @@
 
 package org.akrieger.Nethrar;
 
+import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.entity.Minecart;
 import org.bukkit.entity.Vehicle;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -35,7 +37,23 @@ public class NethrarVehicleListener implements Listener {
       return;
     }
 
-    b = vehicle.getLocation().getBlock();
+    Location from = event.getFrom(), to = event.getTo();
+    if (vehicle instanceof Minecart &&
+        (from.getBlockX() != to.getBlockX() ||
+         from.getBlockY() != to.getBlockY() ||
+         from.getBlockZ() != to.getBlockZ())) {
+
+      PortalUtil.prewarmFor(from, to);
+    }
+
+    Location loc = vehicle.getLocation();
+    if (!PortalUtil.mayHavePortalAt(loc.getWorld(), loc.getBlockX(),
+                                    loc.getBlockZ())) {
+      // No portals in this chunk.
+      return;
+    }
+
+    b = loc.getBlock();
 
     if (!b.getType().equals(Material.PORTAL)) {
       // Not a portal.
@@ -43,6 +61,8 @@ public class NethrarVehicleListener implements Listener {
     }
 
     Portal portal = PortalUtil.getPortalAt(b);
-    portal.teleport(vehicle, event.getTo());
+    if (portal != null) {
+      portal.teleport(vehicle, event.getTo());
+    }
   }
 }
@@ -5,8 +5,12 @@
 package org.akrieger.Nethrar;
 
 import org.bukkit.Chunk;
+import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 
 /**
@@ -17,6 +21,10 @@ import org.bukkit.event.Listener;
  * chunk loading failures, which may cause players to fall and die or to
  * spawn within solid material.
  *
+ * It also has chunks scanned for portal blocks as they load, for the chunk
+ * filter used by the movement listeners, and activates the saved portals in
+ * them. Saved portals are loaded and released along with their worlds.
+ *
  * @author Andrew Krieger
  */
 public class NethrarWorldListener implements Listener {
@@ -29,4 +37,31 @@ public class NethrarWorldListener implements Listener {
       event.setCancelled(true);
     }
   }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onChunkUnloaded(ChunkUnloadEvent event) {
+    PortalUtil.chunkUnloaded(event.getChunk());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onChunkLoad(ChunkLoadEvent event) {
+    Chunk c = event.getChunk();
+    if (event.isNewChunk()) {
+      // Freshly generated terrain has no portals.
+      PortalUtil.chunkScanned(c.getWorld(), c.getX(), c.getZ(), false);
+    } else {
+      PortalUtil.queueChunkScan(c);
+      PortalUtil.activateDormantPortals(c);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onWorldLoad(WorldLoadEvent event) {
+    PortalUtil.loadWorldPortals(event.getWorld());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onWorldUnload(WorldUnloadEvent event) {
+    PortalUtil.unloadWorldPortals(event.getWorld());
+  }
 }
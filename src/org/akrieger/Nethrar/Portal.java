@@ -10,7 +10,6 @@ import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.World.Environment;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Boat;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Minecart;
@@ -20,8 +19,6 @@ import org.bukkit.entity.StorageMinecart;
 import org.bukkit.entity.Vehicle;
 import org.bukkit.util.Vector;
 
-import java.util.HashSet;
-import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -66,13 +63,51 @@ public class Portal {
    *   +-> E - negative z
    */
 
+  // Stable id, assigned when the Portal is first registered. 0 until then.
+  private int id = 0;
   private Portal counterpart;
+  // Id of the saved counterpart, while it is still dormant. See
+  // PortalUtil.activatePendingCounterpart.
+  private int pendingCounterpartId = 0;
   private boolean facingNorth;
   private Block keyBlock;
+  // Result of the last isValid() check, until the frame changes.
+  private byte validity = VALIDITY_UNKNOWN;
+  // Result of the last getWorldBlockType(), until a corner block changes.
+  private BlockData worldBlockType;
+  private int worldBlockKey = -1;
+  private boolean worldBlockTypeKnown = false;
 
   private static final Logger log = Logger.getLogger("Minecraft.Nethrar");
   private static final double OFFSET = 1.5;
 
+  /*
+   * Offsets of the six portal blocks relative to the keyBlock, as pairs of
+   * (distance along the portal's axis, distance up).
+   */
+  static final int[] PORTAL_BLOCK_OFFSETS = {0,0, 0,1, 0,2, 1,0, 1,1, 1,2};
+
+  /*
+   * Offsets of the obsidian frame blocks, in the same format. The corners
+   * are not part of the frame.
+   */
+  static final int[] FRAME_BLOCK_OFFSETS = {
+    0,-1, 1,-1, 0,3, 1,3, -1,0, -1,1, -1,2, 2,0, 2,1, 2,2
+  };
+
+  /*
+   * Offsets of the two top corner blocks of the frame, which are not part of
+   * the frame proper but select the destination world.
+   */
+  static final int[] WORLD_BLOCK_OFFSETS = {-1,3, 2,3};
+
+  private static final byte VALIDITY_UNKNOWN = 0;
+  private static final byte VALIDITY_VALID = 1;
+  private static final byte VALIDITY_INVALID = 2;
+
+  private static final int PORTAL_ID = Material.PORTAL.getId();
+  private static final int OBSIDIAN_ID = Material.OBSIDIAN.getId();
+
   /**
    * Constructs a Portal for the portal at the passed in keyblock.
    *
@@ -103,48 +138,111 @@ public class Portal {
     this.keyBlock = b;
   }
 
+  /**
+   * Returns the type of the frame's top corner blocks, which selects the
+   * world this Portal leads to (see worldBlock in worlds.yml), or null if the
+   * two corners differ. The result is cached until one of the corners
+   * changes.
+   */
   public BlockData getWorldBlockType() {
-    Block b1, b2;
-    Material mat1, mat2;
-    byte data1, data2;
-    boolean legacyBlockFace = BlockFace.NORTH.getModX() == -1;
-    // This all needs to be remathed. Ugh.
-    if (legacyBlockFace) {
-      if (this.facingNorth) {
-        b1 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.EAST);
-        b2 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.WEST, 2);
+    if (!this.worldBlockTypeKnown) {
+      World w = this.keyBlock.getWorld();
+      Block b1 = w.getBlockAt(blockXAt(WORLD_BLOCK_OFFSETS[0]),
+                              this.keyBlock.getY() + WORLD_BLOCK_OFFSETS[1],
+                              blockZAt(WORLD_BLOCK_OFFSETS[0]));
+      Block b2 = w.getBlockAt(blockXAt(WORLD_BLOCK_OFFSETS[2]),
+                              this.keyBlock.getY() + WORLD_BLOCK_OFFSETS[3],
+                              blockZAt(WORLD_BLOCK_OFFSETS[2]));
+
+      Material mat1 = b1.getType();
+      byte data1 = b1.getData();
+      if (mat1.equals(b2.getType()) && data1 == b2.getData()) {
+        this.worldBlockType = new BlockData(mat1, data1);
+        this.worldBlockKey = this.worldBlockType.getKey();
       } else {
-        b1 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.NORTH);
-        b2 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.SOUTH, 2);
+        this.worldBlockType = null;
+        this.worldBlockKey = -1;
+      }
+      this.worldBlockTypeKnown = true;
+    }
+    return this.worldBlockType;
+  }
+
+  /**
+   * Returns the packed key (see BlockData) of getWorldBlockType(), or -1 if
+   * the corners differ.
+   */
+  public int getWorldBlockKey() {
+    getWorldBlockType();
+    return this.worldBlockKey;
+  }
+
+  /**
+   * Returns the packed coordinates (see Coords) of the block at the given
+   * offset from the keyBlock, along the portal's axis and up.
+   */
+  long blockKeyAt(int along, int up) {
+    return Coords.blockKey(blockXAt(along), this.keyBlock.getY() + up,
+                           blockZAt(along));
+  }
+
+  private int blockXAt(int along) {
+    return this.facingNorth ? this.keyBlock.getX() :
+      this.keyBlock.getX() + along;
+  }
+
+  private int blockZAt(int along) {
+    return this.facingNorth ? this.keyBlock.getZ() + along :
+      this.keyBlock.getZ();
+  }
+
+  /** Returns whether the block at the given coords is one of the frame's. */
+  public boolean isFrameBlock(int x, int y, int z) {
+    int along;
+    if (this.facingNorth) {
+      if (x != this.keyBlock.getX()) {
+        return false;
       }
+      along = z - this.keyBlock.getZ();
     } else {
-      if (this.facingNorth) {
-        b1 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.NORTH);
-        b2 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.SOUTH, 2);
-      } else {
-        b1 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.WEST);
-        b2 = this.keyBlock.getRelative(BlockFace.UP, 3)
-          .getRelative(BlockFace.EAST, 2);
+      if (z != this.keyBlock.getZ()) {
+        return false;
+      }
+      along = x - this.keyBlock.getX();
+    }
+    int up = y - this.keyBlock.getY();
+    for (int i = 0; i < FRAME_BLOCK_OFFSETS.length; i += 2) {
+      if (FRAME_BLOCK_OFFSETS[i] == along &&
+          FRAME_BLOCK_OFFSETS[i + 1] == up) {
+        return true;
       }
-
     }
+    return false;
+  }
 
-    mat1 = b1.getType();
-    mat2 = b2.getType();
-    data1 = b1.getData();
-    data2 = b2.getData();
+  /**
+   * Notifies this Portal that a block in or around its frame changed, so that
+   * any state cached from the world must be re-read.
+   */
+  public void frameChanged() {
+    this.validity = VALIDITY_UNKNOWN;
+    this.worldBlockTypeKnown = false;
+  }
 
-    if (mat1.equals(mat2) && data1 == data2) {
-      return new BlockData(mat1, data1);
+  /**
+   * Notifies this Portal that the block at the given coordinates changed.
+   * Only state that depends on that block is dropped.
+   */
+  public void blockChanged(int x, int y, int z) {
+    this.validity = VALIDITY_UNKNOWN;
+    int up = y - this.keyBlock.getY();
+    for (int i = 0; i < WORLD_BLOCK_OFFSETS.length; i += 2) {
+      int along = WORLD_BLOCK_OFFSETS[i];
+      if (up == WORLD_BLOCK_OFFSETS[i + 1] &&
+          x == blockXAt(along) && z == blockZAt(along)) {
+        this.worldBlockTypeKnown = false;
+      }
     }
-    return null;
   }
 
   /**
@@ -155,6 +253,28 @@ public class Portal {
     return this.facingNorth;
   }
 
+  /** Returns this Portal's id, or 0 if it has never been registered. */
+  public int getId() {
+    return this.id;
+  }
+
+  /** Sets this Portal's id. Ids are handed out by PortalUtil. */
+  public void setId(int newId) {
+    this.id = newId;
+  }
+
+  /**
+   * Returns the id of this Portal's saved counterpart, if that has not been
+   * activated yet, or 0.
+   */
+  public int getPendingCounterpartId() {
+    return this.pendingCounterpartId;
+  }
+
+  public void setPendingCounterpartId(int id) {
+    this.pendingCounterpartId = id;
+  }
+
   /** Returns the counterpart Portal for this Portal. */
   public Portal getCounterpart() {
     return this.counterpart;
@@ -163,6 +283,7 @@ public class Portal {
   /** Sets the counterpart Portal for this Portal. */
   public void setCounterpart(Portal newCounterpart) {
     this.counterpart = newCounterpart;
+    this.pendingCounterpartId = 0;
   }
 
   /** Returns the Location of this Portal's keyblock. */
@@ -186,6 +307,8 @@ public class Portal {
    *    mark this as such.
    * 2) If there is no counterpart, figure out where it would be, and get it.
    *    This may involve generating and placing a portal into the world.
+   *    It happens in the background (see CounterpartSearch); the entity is
+   *    held at this portal, and sent through once it is done.
    * 3) Assuming we now have a counterpart, figure out where to teleport the
    *    entity to.
    *    3a) Figure out the entity's position relative to the entry portal.
@@ -208,11 +331,17 @@ public class Portal {
    *     entity was not teleported.
    */
   public Location teleport(Entity e, Location interaction) {
+    if (PortalUtil.isHeld(e)) {
+      // Still waiting for a counterpart to be found.
+      return null;
+    }
+    if (this.counterpart == null && this.pendingCounterpartId != 0) {
+      PortalUtil.activatePendingCounterpart(this);
+    }
     if (this.counterpart != null) {
-      if (!this.counterpart.isValid()) {
+      if (!this.counterpart.recheckValid()) {
         PortalUtil.removePortal(this.counterpart);
         this.counterpart = null;
-        PortalUtil.getCounterpartPortalFor(this);
       } else {
         BlockData bd = this.getWorldBlockType();
         if (bd != null &&
@@ -223,15 +352,14 @@ public class Portal {
 
           // Did my keyblock change, and if so, change my destination.
           this.counterpart = null;
-          PortalUtil.getCounterpartPortalFor(this);
         }
       }
-    } else {
-      PortalUtil.getCounterpartPortalFor(this);
     }
 
     if (this.counterpart == null) {
-      // Could not establish a link, for whatever reason.
+      // Establish a link in the background, then come back here. If there
+      // is nowhere to link to, there is nothing to do.
+      PortalUtil.findCounterpartFor(this, e);
       return null;
     }
 
@@ -282,15 +410,18 @@ public class Portal {
     }
 
     World destWorld = this.counterpart.getKeyBlock().getWorld();
-    String permission = "nethrar.block." + destWorld.getName();
 
     if ((Nethrar.getPlugin().shouldUsePermissions()) &&
         ((e instanceof Player)) &&
-        (((Player)e).hasPermission(permission)) &&
-        !((Player)e).isOp()) {
+        NethrarPlayerState.get((Player)e).isBlockedFrom((Player)e,
+                                                        destWorld)) {
       return null;
     }
 
+    // Keep the chunks around both ends loaded while the link is in use.
+    PortalUtil.portalUsed(this);
+    PortalUtil.portalUsed(this.counterpart);
+
     destX = this.counterpart.getKeyBlock().getX() + finalOffset.getX();
     destY = this.counterpart.getKeyBlock().getY() + finalOffset.getY();
     destZ = this.counterpart.getKeyBlock().getZ() + finalOffset.getZ();
@@ -381,69 +512,47 @@ public class Portal {
    * Returns whether or not this is still a valid portal in the world,
    * according to various heuristics.
    *
-   * Checks that the portal is still lit, i.e. all portal blocks still exist.
+   * Checks that the portal is still lit, i.e. all portal blocks still exist,
+   * and that the obsidian frame around it is intact. The result is cached
+   * until frameChanged() is called.
    */
   public boolean isValid() {
-    Set<Block> portalBlocks = new HashSet<Block>();
-    Set<Block> frameBlocks = new HashSet<Block>();
-    Block testBlock = this.keyBlock;
-    World testWorld = testBlock.getWorld();
-    int testX = testBlock.getX(), testY = testBlock.getY(),
-        testZ = testBlock.getZ();
-
-    if (this.facingNorth) {
-      for (int dz = 0; dz <= 1; dz++) {
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX, testY - 1, testZ + dz));
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX, testY + 3, testZ + dz));
-      }
-    } else {
-      for (int dx = 0; dx <= 1; dx++) {
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX + dx, testY - 1, testZ));
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX + dx, testY + 3, testZ));
-      }
+    if (this.validity == VALIDITY_UNKNOWN) {
+      boolean portalValid = hasBlocksAt(PORTAL_BLOCK_OFFSETS, PORTAL_ID) &&
+        hasBlocksAt(FRAME_BLOCK_OFFSETS, OBSIDIAN_ID);
+      // TODO: add more validity tests.
+      this.validity = portalValid ? VALIDITY_VALID : VALIDITY_INVALID;
     }
+    return this.validity == VALIDITY_VALID;
+  }
 
-    for (int dy = 0; dy <= 2; dy++) {
-      portalBlocks.add(testBlock.getWorld().getBlockAt(
-                                                       testX, testY + dy, testZ));
-      if (this.facingNorth) {
-        portalBlocks.add(testWorld.getBlockAt(
-                                              testX, testY + dy, testZ + 1));
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX, testY + dy, testZ + 2));
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX, testY + dy, testZ - 1));
-      } else {
-        portalBlocks.add(testWorld.getBlockAt(
-                                              testX + 1, testY + dy, testZ));
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX + 2, testY + dy, testZ));
-        frameBlocks.add(testWorld.getBlockAt(
-                                             testX - 1, testY + dy, testZ));
-      }
-    }
-
-    boolean portalValid = true;
-
-    for (Block tBlock : portalBlocks) {
-      if (!tBlock.getType().equals(Material.PORTAL)) {
-        portalValid = false;
-        break;
-      }
-    }
+  /**
+   * Checks whether this is still a valid portal against the world itself,
+   * rather than the cached result. Blocks changed without a block event,
+   * as other plugins may do, are only noticed this way.
+   */
+  public boolean recheckValid() {
+    this.validity = VALIDITY_UNKNOWN;
+    return isValid();
+  }
 
-    for (Block tBlock : frameBlocks) {
-      if (!portalValid || !tBlock.getType().equals(Material.OBSIDIAN)) {
-        portalValid = false;
-        break;
+  /**
+   * Returns whether every block at the given offsets (see
+   * PORTAL_BLOCK_OFFSETS) is of the given type.
+   */
+  private boolean hasBlocksAt(int[] offsets, int typeId) {
+    World testWorld = this.keyBlock.getWorld();
+    int testX = this.keyBlock.getX(), testY = this.keyBlock.getY(),
+        testZ = this.keyBlock.getZ();
+
+    for (int i = 0; i < offsets.length; i += 2) {
+      int along = offsets[i], up = offsets[i + 1];
+      int x = this.facingNorth ? testX : testX + along;
+      int z = this.facingNorth ? testZ + along : testZ;
+      if (testWorld.getBlockTypeIdAt(x, testY + up, z) != typeId) {
+        return false;
       }
     }
-
-    // TODO: add more validity tests.
-    return portalValid;
+    return true;
   }
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.block.Block;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of changes to the portals of one world.
+ *
+ * Every portal added, removed or linked is appended to the journal file as
+ * it happens, so that nothing is lost if the server goes down without
+ * disabling Nethrar. Each checkpoint writes a snapshot of the world's
+ * portals to its portal store (see PortalStore) and starts a new, empty
+ * journal. When the world is loaded, the journal is replayed on top of the
+ * portal store.
+ *
+ * Portals are identified in the journal by their ids. All file access
+ * happens on a single thread shared by every journal (see newIoThread), in
+ * the order the changes were made.
+ *
+ * @author Andrew Krieger
+ */
+public class PortalJournal {
+
+  private static final byte OP_ADD = 1;
+  private static final byte OP_REMOVE = 2;
+  private static final byte OP_LINK = 3;
+
+  private static final Logger log = Logger.getLogger("Minecraft.Nethrar");
+
+  private final File storeFile;
+  private final File journalFile;
+  private final ExecutorService io;
+
+  // Only touched on the io thread.
+  private FileOutputStream out;
+  private long journalBytes;
+  // Bytes journaled since the last checkpoint was asked for. Only touched
+  // on the main thread.
+  private long uncheckpointedBytes;
+
+  /**
+   * Opens the journal for the given portal store, continuing any journal
+   * left from before. The existing journal is folded into the store at the
+   * next checkpoint.
+   */
+  public PortalJournal(ExecutorService io, File storeFile, File journalFile)
+    throws IOException {
+
+    this.io = io;
+    this.storeFile = storeFile;
+    this.journalFile = journalFile;
+    this.journalBytes = journalFile.length();
+    this.uncheckpointedBytes = this.journalBytes;
+    this.out = new FileOutputStream(journalFile, true);
+  }
+
+  /** Returns a new thread to do journal and store file access on. */
+  public static ExecutorService newIoThread() {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Nethrar portal storage");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public void portalAdded(Portal p, boolean protect) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+      DataOutputStream data = new DataOutputStream(bytes);
+      Block b = p.getKeyBlock();
+      data.writeByte(OP_ADD);
+      data.writeInt(p.getId());
+      data.writeUTF(b.getWorld().getName());
+      data.writeInt(b.getX());
+      data.writeInt(b.getY());
+      data.writeInt(b.getZ());
+      data.writeBoolean(protect);
+      append(bytes.toByteArray());
+    } catch (IOException e) {
+      // Writing to memory does not throw.
+    }
+  }
+
+  public void portalRemoved(int id) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+      DataOutputStream data = new DataOutputStream(bytes);
+      data.writeByte(OP_REMOVE);
+      data.writeInt(id);
+      append(bytes.toByteArray());
+    } catch (IOException e) {
+      // Writing to memory does not throw.
+    }
+  }
+
+  /** Records that source's counterpart was set to dest. */
+  public void portalLinked(Portal source, Portal dest) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+      DataOutputStream data = new DataOutputStream(bytes);
+      data.writeByte(OP_LINK);
+      data.writeInt(source.getId());
+      data.writeInt(dest.getId());
+      append(bytes.toByteArray());
+    } catch (IOException e) {
+      // Writing to memory does not throw.
+    }
+  }
+
+  /**
+   * Returns how many bytes have been journaled since the last checkpoint,
+   * including any journal left from before.
+   */
+  public long getUncheckpointedBytes() {
+    return this.uncheckpointedBytes;
+  }
+
+  private void append(final byte[] entry) {
+    this.uncheckpointedBytes += entry.length;
+    this.io.execute(new Runnable() {
+      public void run() {
+        try {
+          out.write(entry);
+          journalBytes += entry.length;
+        } catch (IOException e) {
+          log.warning("[NETHRAR] Could not write to the portal journal: " +
+                      e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the given snapshot of the registry to the portal store in the
+   * background, then starts a new journal. The snapshot must have been taken
+   * on the main thread after the last change was journaled, and must not be
+   * modified afterwards.
+   */
+  public void checkpoint(final PortalStore.Contents snapshot) {
+    this.uncheckpointedBytes = 0;
+    this.io.execute(new Runnable() {
+      public void run() {
+        if (journalBytes == 0 && storeFile.exists()) {
+          return;
+        }
+        try {
+          PortalStore.write(storeFile, snapshot);
+          out.close();
+          out = new FileOutputStream(journalFile, false);
+          journalBytes = 0;
+        } catch (IOException e) {
+          log.warning("[NETHRAR] Could not save portals: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Closes the journal once the changes already queued are written. The
+   * journal is not compacted; it is replayed when the world next loads
+   * instead. The io thread should be shut down once all journals are
+   * closed.
+   */
+  public void close() {
+    this.io.execute(new Runnable() {
+      public void run() {
+        try {
+          out.close();
+        } catch (IOException e) {
+          log.warning("[NETHRAR] Could not close the portal journal: " +
+                      e.getMessage());
+        }
+      }
+    });
+  }
+
+  private static class Entry {
+    int id;
+    String world;
+    int x, y, z;
+    boolean protect;
+    int dest;
+  }
+
+  /**
+   * Returns the store contents that result from applying the given journal
+   * file to the given contents. A journal cut off partway through a change,
+   * as happens when the server goes down while writing it, is applied up to
+   * the last whole change.
+   */
+  public static PortalStore.Contents replay(PortalStore.Contents contents,
+                                            File journalFile)
+    throws IOException {
+
+    if (!journalFile.exists() || journalFile.length() == 0) {
+      return contents;
+    }
+
+    LongHashMap<Entry> entries = new LongHashMap<Entry>();
+    for (PortalRecord r : contents.records) {
+      Entry e = put(entries, r.id, r.worldName, r.x, r.y, r.z, r.protect);
+      e.dest = r.destination;
+    }
+    int nextId = contents.nextId;
+
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(journalFile)));
+    int applied = 0;
+    try {
+      while (true) {
+        int op = in.read();
+        if (op < 0) {
+          break;
+        }
+        int id = in.readInt();
+        if (op == OP_ADD) {
+          String world = in.readUTF();
+          int x = in.readInt(), y = in.readInt(), z = in.readInt();
+          put(entries, id, world, x, y, z, in.readBoolean());
+          nextId = Math.max(nextId, id + 1);
+        } else if (op == OP_REMOVE) {
+          Entry removed = entries.remove(id);
+          if (removed != null && removed.dest != 0) {
+            Entry dest = entries.get(removed.dest);
+            if (dest != null && dest.dest == id) {
+              dest.dest = 0;
+            }
+          }
+        } else if (op == OP_LINK) {
+          Entry source = entries.get(id);
+          int destId = in.readInt();
+          if (source != null) {
+            source.dest = destId;
+          }
+        } else {
+          log.severe("[NETHRAR] Portal journal is corrupt after " + applied +
+                     " changes. Ignoring the rest of it.");
+          break;
+        }
+        applied++;
+      }
+    } catch (EOFException e) {
+      log.warning("[NETHRAR] Portal journal ends partway through a change. " +
+                  "Ignoring the incomplete change.");
+    } finally {
+      in.close();
+    }
+
+    List<Entry> all = entries.values();
+    List<PortalRecord> result = new ArrayList<PortalRecord>(all.size());
+    for (Entry e : all) {
+      // Counterparts that were removed are no longer in the journal.
+      int dest = entries.containsKey(e.dest) ? e.dest : 0;
+      result.add(new PortalRecord(e.id, e.world, e.x, e.y, e.z, e.protect,
+                                  dest));
+    }
+    return new PortalStore.Contents(nextId, result);
+  }
+
+  private static Entry put(LongHashMap<Entry> entries, int id, String world,
+                           int x, int y, int z, boolean protect) {
+    Entry e = new Entry();
+    e.id = id;
+    e.world = world;
+    e.x = x; e.y = y; e.z = z;
+    e.protect = protect;
+    entries.put(id, e);
+    return e;
+  }
+}
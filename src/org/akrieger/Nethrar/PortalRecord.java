@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+/**
+ * Saved form of a Portal, as read from and written to the portal store.
+ *
+ * @author Andrew Krieger
+ */
+public class PortalRecord {
+
+  public final int id;
+  public final String worldName;
+  public final int x, y, z;
+  public final boolean protect;
+  // Id of the counterpart, or 0 if none.
+  public final int destination;
+
+  public PortalRecord(int id, String worldName, int x, int y, int z,
+                      boolean protect, int destination) {
+    this.id = id;
+    this.worldName = worldName;
+    this.x = x; this.y = y; this.z = z;
+    this.protect = protect;
+    this.destination = destination;
+  }
+}
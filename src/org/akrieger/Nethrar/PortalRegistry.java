@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of the Portals in a single world.
+ *
+ * Portals are indexed by the packed coordinates of their keyblock, so that
+ * resolving a portal does not need to build a Location or hash a World. They
+ * are also bucketed by the chunk their keyblock is in, which serves as the
+ * spatial index for counterpart searches, and each of their portal blocks is
+ * mapped back to them, so that any portal block resolves to its Portal
+ * without walking the world.
+ *
+ * The registry also tracks which chunks may contain portal blocks at all,
+ * from the registered portals and from scans of loaded chunks, so that
+ * movement listeners can skip chunks without portals. Finally, it counts
+ * how many portals are keeping each chunk loaded.
+ *
+ * @author Andrew Krieger
+ */
+public class PortalRegistry {
+
+  private final World world;
+  private final LongHashMap<Portal> portalsByKeyBlock =
+    new LongHashMap<Portal>();
+  private final LongHashMap<List<Portal>> portalsByChunk =
+    new LongHashMap<List<Portal>>();
+  private final LongHashMap<Portal> portalsByPortalBlock =
+    new LongHashMap<Portal>();
+  private final InvalidFrameCache invalidFrames =
+    new InvalidFrameCache(INVALID_FRAME_CACHE_SIZE);
+  // Number of registered portal blocks in each chunk.
+  private final LongIntMap portalBlocksPerChunk = new LongIntMap();
+  // Chunks scanned since they were loaded: 1 if they contain portal blocks,
+  // 0 if they do not, or SCAN_PENDING while a scan is queued or running.
+  private final LongIntMap scannedChunks = new LongIntMap();
+  // Number of registered portals keeping each chunk loaded.
+  private final LongIntMap heldChunks = new LongIntMap();
+
+  private static final int INVALID_FRAME_CACHE_SIZE = 1024;
+  private static final int SCAN_PENDING = -1;
+
+  public PortalRegistry(World world) {
+    this.world = world;
+  }
+
+  public World getWorld() {
+    return this.world;
+  }
+
+  /** Returns the Portal whose keyblock is at the given coordinates. */
+  public Portal get(int x, int y, int z) {
+    return this.portalsByKeyBlock.get(Coords.blockKey(x, y, z));
+  }
+
+  /** Returns the Portal one of whose portal blocks is at the given coords. */
+  public Portal getByPortalBlock(int x, int y, int z) {
+    return this.portalsByPortalBlock.get(Coords.blockKey(x, y, z));
+  }
+
+  /**
+   * Registers the Portal under its keyblock, returning the Portal previously
+   * registered there, if any.
+   */
+  public Portal put(Portal p) {
+    Block b = p.getKeyBlock();
+    Portal old = this.portalsByKeyBlock.put(Coords.blockKey(b), p);
+    long chunkKey = Coords.chunkKeyAt(b.getX(), b.getZ());
+    List<Portal> bucket = this.portalsByChunk.get(chunkKey);
+    if (bucket == null) {
+      bucket = new ArrayList<Portal>(2);
+      this.portalsByChunk.put(chunkKey, bucket);
+    }
+    if (old != null) {
+      bucket.remove(old);
+      unmapPortalBlocks(old);
+    }
+    bucket.add(p);
+
+    int[] offsets = Portal.PORTAL_BLOCK_OFFSETS;
+    for (int i = 0; i < offsets.length; i += 2) {
+      long key = p.blockKeyAt(offsets[i], offsets[i + 1]);
+      this.portalsByPortalBlock.put(key, p);
+      this.portalBlocksPerChunk.add(
+        Coords.chunkKeyAt(Coords.blockX(key), Coords.blockZ(key)), 1);
+    }
+    return old;
+  }
+
+  private void unmapPortalBlocks(Portal p) {
+    int[] offsets = Portal.PORTAL_BLOCK_OFFSETS;
+    for (int i = 0; i < offsets.length; i += 2) {
+      long key = p.blockKeyAt(offsets[i], offsets[i + 1]);
+      if (this.portalsByPortalBlock.get(key) == p) {
+        this.portalsByPortalBlock.remove(key);
+        this.portalBlocksPerChunk.add(
+          Coords.chunkKeyAt(Coords.blockX(key), Coords.blockZ(key)), -1);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the given chunk may contain portal blocks: whether it
+   * has registered portal blocks, or a scan since it was loaded found some.
+   * Chunks that have not been scanned yet only count their registered
+   * portal blocks.
+   */
+  public boolean mayHavePortalBlocks(int chunkX, int chunkZ) {
+    long key = Coords.chunkKey(chunkX, chunkZ);
+    return this.portalBlocksPerChunk.containsKey(key) ||
+      this.scannedChunks.get(key, 0) == 1;
+  }
+
+  /** Records the result of scanning a loaded chunk for portal blocks. */
+  public void chunkScanned(int chunkX, int chunkZ, boolean hasPortalBlocks) {
+    this.scannedChunks.put(Coords.chunkKey(chunkX, chunkZ),
+                           hasPortalBlocks ? 1 : 0);
+  }
+
+  /** Returns whether the given chunk was scanned since it was loaded. */
+  public boolean isChunkScanned(int chunkX, int chunkZ) {
+    return this.scannedChunks.get(Coords.chunkKey(chunkX, chunkZ),
+                                  SCAN_PENDING) != SCAN_PENDING;
+  }
+
+  /** Returns whether a scan of the given chunk is queued or running. */
+  public boolean isScanPending(int chunkX, int chunkZ) {
+    return this.scannedChunks.get(Coords.chunkKey(chunkX, chunkZ), 0) ==
+      SCAN_PENDING;
+  }
+
+  /**
+   * Notes that a scan of the given chunk is starting. Returns false if the
+   * chunk has been scanned, or a scan is already queued or running.
+   */
+  public boolean startScan(int chunkX, int chunkZ) {
+    long key = Coords.chunkKey(chunkX, chunkZ);
+    if (this.scannedChunks.containsKey(key)) {
+      return false;
+    }
+    this.scannedChunks.put(key, SCAN_PENDING);
+    return true;
+  }
+
+  /** Forgets the scan result for a chunk that was unloaded. */
+  public void chunkUnloaded(int chunkX, int chunkZ) {
+    this.scannedChunks.remove(Coords.chunkKey(chunkX, chunkZ));
+  }
+
+  /**
+   * Adds a hold keeping the given chunk loaded. Returns whether the chunk
+   * was not held before.
+   */
+  public boolean holdChunk(int chunkX, int chunkZ) {
+    return this.heldChunks.add(Coords.chunkKey(chunkX, chunkZ), 1) == 1;
+  }
+
+  /**
+   * Releases a hold on the given chunk. Returns whether the chunk is no
+   * longer held at all.
+   */
+  public boolean releaseChunk(int chunkX, int chunkZ) {
+    return this.heldChunks.add(Coords.chunkKey(chunkX, chunkZ), -1) <= 0;
+  }
+
+  public boolean isChunkHeld(int chunkX, int chunkZ) {
+    return this.heldChunks.containsKey(Coords.chunkKey(chunkX, chunkZ));
+  }
+
+  /** Returns the number of distinct chunks held. */
+  public int getHeldChunkCount() {
+    return this.heldChunks.size();
+  }
+
+  /**
+   * Removes the given Portal. Does nothing if a different Portal is
+   * registered at the same keyblock.
+   */
+  public boolean remove(Portal p) {
+    Block b = p.getKeyBlock();
+    long key = Coords.blockKey(b);
+    if (this.portalsByKeyBlock.get(key) != p) {
+      return false;
+    }
+    this.portalsByKeyBlock.remove(key);
+
+    long chunkKey = Coords.chunkKeyAt(b.getX(), b.getZ());
+    List<Portal> bucket = this.portalsByChunk.get(chunkKey);
+    if (bucket != null) {
+      bucket.remove(p);
+      if (bucket.isEmpty()) {
+        this.portalsByChunk.remove(chunkKey);
+      }
+    }
+    unmapPortalBlocks(p);
+    return true;
+  }
+
+  /**
+   * Returns whether any Portal has its keyblock in the chunks within the
+   * given radius, in chunks, of the given chunk.
+   */
+  public boolean hasPortalsNear(int chunkX, int chunkZ, int radius) {
+    if (this.portalsByChunk.isEmpty()) {
+      return false;
+    }
+    for (int cx = chunkX - radius; cx <= chunkX + radius; cx++) {
+      for (int cz = chunkZ - radius; cz <= chunkZ + radius; cz++) {
+        if (this.portalsByChunk.containsKey(Coords.chunkKey(cx, cz))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the Portals whose keyblocks fall in the XZ region, and which
+   * have any portal block in the Y range. All bounds are inclusive.
+   */
+  public List<Portal> getPortalsInRegion(int minX, int minY, int minZ,
+                                         int maxX, int maxY, int maxZ) {
+
+    List<Portal> result = new ArrayList<Portal>();
+    for (int cx = minX >> 4, endcx = maxX >> 4; cx <= endcx; cx++) {
+      for (int cz = minZ >> 4, endcz = maxZ >> 4; cz <= endcz; cz++) {
+        List<Portal> bucket =
+          this.portalsByChunk.get(Coords.chunkKey(cx, cz));
+        if (bucket == null) {
+          continue;
+        }
+        for (Portal p : bucket) {
+          Block b = p.getKeyBlock();
+          int x = b.getX(), y = b.getY(), z = b.getZ();
+          // Portal blocks span keyblock y through y + 2.
+          if (x >= minX && x <= maxX && z >= minZ && z <= maxZ &&
+              y + 2 >= minY && y <= maxY) {
+            result.add(p);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the Portals that have a portal block or frame block at the given
+   * coordinates.
+   */
+  public List<Portal> getPortalsUsing(int x, int y, int z) {
+    List<Portal> result = new ArrayList<Portal>(1);
+    Portal p = getByPortalBlock(x, y, z);
+    if (p != null) {
+      result.add(p);
+      return result;
+    }
+    for (int cx = (x - 2) >> 4, endcx = (x + 1) >> 4; cx <= endcx; cx++) {
+      for (int cz = (z - 2) >> 4, endcz = (z + 1) >> 4; cz <= endcz; cz++) {
+        List<Portal> bucket =
+          this.portalsByChunk.get(Coords.chunkKey(cx, cz));
+        if (bucket == null) {
+          continue;
+        }
+        for (int i = 0; i < bucket.size(); i++) {
+          if (bucket.get(i).isFrameBlock(x, y, z)) {
+            result.add(bucket.get(i));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether the portal block at the given coordinates is known to be
+   * part of an invalid portal frame.
+   */
+  public boolean isKnownInvalid(int x, int y, int z) {
+    return this.invalidFrames.contains(Coords.blockKey(x, y, z));
+  }
+
+  /** Remembers that the given portal block is part of an invalid frame. */
+  public void markInvalid(int x, int y, int z) {
+    this.invalidFrames.add(Coords.blockKey(x, y, z));
+  }
+
+  /**
+   * Notes that the block at the given coordinates changed, which may have
+   * fixed any invalid frames near it.
+   */
+  public void blockChanged(int x, int y, int z) {
+    this.invalidFrames.invalidateNear(x, y, z);
+
+    // A frame spans one block before the keyblock to two blocks after it
+    // along the portal's axis, and one block below it to three above it.
+    for (int cx = (x - 2) >> 4, endcx = (x + 1) >> 4; cx <= endcx; cx++) {
+      for (int cz = (z - 2) >> 4, endcz = (z + 1) >> 4; cz <= endcz; cz++) {
+        List<Portal> bucket =
+          this.portalsByChunk.get(Coords.chunkKey(cx, cz));
+        if (bucket == null) {
+          continue;
+        }
+        for (int i = 0; i < bucket.size(); i++) {
+          Portal p = bucket.get(i);
+          Block b = p.getKeyBlock();
+          int kx = b.getX(), ky = b.getY(), kz = b.getZ();
+          if (kx >= x - 2 && kx <= x + 1 && ky >= y - 3 && ky <= y + 1 &&
+              kz >= z - 2 && kz <= z + 1) {
+            p.blockChanged(x, y, z);
+          }
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return this.portalsByKeyBlock.size();
+  }
+
+  /** Returns a copy of all Portals in this registry. */
+  public List<Portal> getPortals() {
+    return this.portalsByKeyBlock.values();
+  }
+}
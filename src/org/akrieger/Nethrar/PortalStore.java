@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+import org.bukkit.configuration.Configuration;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes the binary portal stores, one per world, and the file
+ * that reserves portal ids across all of them.
+ *
+ * The file is laid out as:
+ *   int magic ("NTHR"), int version, int next portal id,
+ *   int world count, then for each world a short length and UTF-8 name,
+ *   int record count, then fixed-size records of
+ *     int world index, int id, int x, int y, int z, byte flags,
+ *     int counterpart id (0 for none), 3 bytes padding.
+ * All values are big-endian. The file is read into memory in one pass.
+ *
+ * @author Andrew Krieger
+ */
+public class PortalStore {
+
+  private static final int MAGIC = 0x4E544852;
+  private static final int VERSION = 1;
+  private static final int RECORD_SIZE = 28;
+  private static final int FLAG_PROTECTED = 1;
+  // Magic number of the portal id file, "NTHI".
+  private static final int IDS_MAGIC = 0x4E544849;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The saved portals, and the id to give the next new portal. */
+  public static class Contents {
+    public final int nextId;
+    public final List<PortalRecord> records;
+
+    public Contents(int nextId, List<PortalRecord> records) {
+      this.nextId = nextId;
+      this.records = records;
+    }
+  }
+
+  private PortalStore() { }
+
+  /**
+   * Reads the records in the given store file. Returns no records if the
+   * file does not exist.
+   */
+  public static Contents read(File file) throws IOException {
+    if (!file.exists()) {
+      File tempFile = getTempFile(file);
+      if (tempFile.exists()) {
+        try {
+          return readStore(tempFile);
+        } catch (IOException e) {
+          // Cut off while it was first being written; see getTempFile.
+        }
+      }
+      return new Contents(1, new ArrayList<PortalRecord>());
+    }
+    return readStore(file);
+  }
+
+  private static Contents readStore(File file) throws IOException {
+    List<PortalRecord> records = new ArrayList<PortalRecord>();
+    int nextId;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      // Read into a heap buffer rather than mapping the file, since a
+      // mapping keeps the file open until it is garbage collected, and
+      // Windows will not rename over or delete a file that is open.
+      FileChannel channel = in.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large.");
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int)channel.size());
+      while (buf.hasRemaining() && channel.read(buf) >= 0);
+      buf.flip();
+
+      if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+        throw new IOException(file + " is not a Nethrar portal store.");
+      }
+      int version = buf.getInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has unsupported version " + version +
+                              ".");
+      }
+      nextId = buf.getInt();
+
+      String[] worldNames = new String[buf.getInt()];
+      for (int i = 0; i < worldNames.length; i++) {
+        byte[] name = new byte[buf.getShort() & 0xFFFF];
+        buf.get(name);
+        worldNames[i] = new String(name, UTF8);
+      }
+
+      int count = buf.getInt();
+      if (buf.remaining() < (long)count * RECORD_SIZE) {
+        throw new IOException(file + " is truncated.");
+      }
+      for (int i = 0; i < count; i++) {
+        int base = buf.position();
+        int world = buf.getInt(base);
+        int id = buf.getInt(base + 4);
+        int x = buf.getInt(base + 8);
+        int y = buf.getInt(base + 12);
+        int z = buf.getInt(base + 16);
+        byte flags = buf.get(base + 20);
+        int destination = buf.getInt(base + 21);
+        buf.position(base + RECORD_SIZE);
+
+        if (world < 0 || world >= worldNames.length || id <= 0 ||
+            destination < 0) {
+          throw new IOException(file + " has a corrupt record at index " +
+                                i + ".");
+        }
+        records.add(new PortalRecord(id, worldNames[world], x, y, z,
+                                     (flags & FLAG_PROTECTED) != 0,
+                                     destination));
+        nextId = Math.max(nextId, id + 1);
+      }
+    } finally {
+      in.close();
+    }
+    return new Contents(nextId, records);
+  }
+
+  /**
+   * Writes the given records to the given store file, replacing it in one
+   * step.
+   */
+  public static void write(File file, Contents contents) throws IOException {
+    List<PortalRecord> records = contents.records;
+    Map<String, Integer> worldIndices = new HashMap<String, Integer>();
+    List<byte[]> worldNames = new ArrayList<byte[]>();
+    int size = 20;
+    for (PortalRecord r : records) {
+      if (!worldIndices.containsKey(r.worldName)) {
+        byte[] name = r.worldName.getBytes(UTF8);
+        worldIndices.put(r.worldName, worldNames.size());
+        worldNames.add(name);
+        size += 2 + name.length;
+      }
+    }
+    size += records.size() * RECORD_SIZE;
+
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putInt(contents.nextId);
+    buf.putInt(worldNames.size());
+    for (byte[] name : worldNames) {
+      buf.putShort((short)name.length);
+      buf.put(name);
+    }
+    buf.putInt(records.size());
+    for (PortalRecord r : records) {
+      buf.putInt(worldIndices.get(r.worldName));
+      buf.putInt(r.id);
+      buf.putInt(r.x);
+      buf.putInt(r.y);
+      buf.putInt(r.z);
+      buf.put((byte)(r.protect ? FLAG_PROTECTED : 0));
+      buf.putInt(r.destination);
+      buf.put(new byte[3]);
+    }
+    buf.flip();
+    replace(file, buf);
+  }
+
+  /**
+   * Returns the first portal id not reserved by the given id file, or 1 if
+   * there is no id file.
+   */
+  public static int readNextId(File file) throws IOException {
+    if (!file.exists()) {
+      File tempFile = getTempFile(file);
+      if (tempFile.exists()) {
+        try {
+          return readIds(tempFile);
+        } catch (IOException e) {
+          // Cut off while it was first being written; see getTempFile.
+        }
+      }
+      return 1;
+    }
+    return readIds(file);
+  }
+
+  private static int readIds(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      ByteBuffer buf = ByteBuffer.allocate(12);
+      FileChannel channel = in.getChannel();
+      while (buf.hasRemaining() && channel.read(buf) >= 0);
+      buf.flip();
+      if (buf.remaining() < 12 || buf.getInt() != IDS_MAGIC ||
+          buf.getInt() != 1) {
+        throw new IOException(file + " is not a Nethrar portal id file.");
+      }
+      return buf.getInt();
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Reserves the portal ids below nextId in the given id file. */
+  public static void writeNextId(File file, int nextId) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(12);
+    buf.putInt(IDS_MAGIC);
+    buf.putInt(1);
+    buf.putInt(nextId);
+    buf.flip();
+    replace(file, buf);
+  }
+
+  /**
+   * Replaces the given file with the contents of buf. The contents are
+   * written to a temporary file and synced to disk first, so that the file
+   * is never left half written.
+   */
+  private static void replace(File file, ByteBuffer buf) throws IOException {
+    File tempFile = getTempFile(file);
+    FileOutputStream out = new FileOutputStream(tempFile);
+    try {
+      FileChannel channel = out.getChannel();
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(file)) {
+      // Some platforms will not rename over an existing file.
+      if (!file.delete() || !tempFile.renameTo(file)) {
+        throw new IOException("Could not replace " + file + " with " +
+                              tempFile + ".");
+      }
+    }
+  }
+
+  /**
+   * Returns the temporary file that replace writes the given file's new
+   * contents to. Where the platform will not rename over an existing file,
+   * replace deletes the file first, so if the server goes down in between,
+   * only the temporary file is left. It was synced to disk before the
+   * delete, so readers fall back to it when the file itself is missing.
+   * One that does not read was cut off while the file was first being
+   * written, and is ignored.
+   */
+  private static File getTempFile(File file) {
+    return new File(file.getPath() + ".tmp");
+  }
+
+  /**
+   * Converts portals saved in the old portals.yml format, keyed by
+   * "world;nonce", into store records. Portals are given ids in the order
+   * they are read.
+   */
+  public static Contents importYaml(Configuration portalConfig) {
+    List<PortalRecord> records = new ArrayList<PortalRecord>();
+    Set<String> portalKeys = portalConfig.getKeys(false);
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    List<String> keys = new ArrayList<String>();
+
+    for (String portalKey : portalKeys) {
+      ConfigurationSection config =
+        portalConfig.getConfigurationSection(portalKey);
+      if (config == null || portalKey.lastIndexOf(";") < 0) {
+        continue;
+      }
+      List<Integer> coords = config.getIntegerList("keyblock");
+      if (coords == null || coords.size() < 3) {
+        continue;
+      }
+      keys.add(portalKey);
+      ids.put(portalKey, keys.size());
+    }
+
+    for (String portalKey : keys) {
+      ConfigurationSection config =
+        portalConfig.getConfigurationSection(portalKey);
+      List<Integer> coords = config.getIntegerList("keyblock");
+      Integer destination = ids.get(config.getString("destination"));
+      records.add(new PortalRecord(
+        ids.get(portalKey),
+        portalKey.substring(0, portalKey.lastIndexOf(";")),
+        coords.get(0), coords.get(1), coords.get(2),
+        config.getBoolean("protected"),
+        destination == null ? 0 : destination));
+    }
+    return new Contents(keys.size() + 1, records);
+  }
+}
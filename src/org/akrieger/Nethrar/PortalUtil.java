@@ -13,8 +13,12 @@ import org.bukkit.World.Environment;
 import org.bukkit.block.Block;
 import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Animals;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.Monster;
+import org.bukkit.entity.Pig;
 import org.bukkit.entity.Player;
+import org.bukkit.entity.Vehicle;
 import org.bukkit.generator.ChunkGenerator;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.configuration.Configuration;
@@ -24,14 +28,19 @@ import org.bukkit.util.Vector;
 import java.io.File;
 import java.io.IOException;
 import java.lang.IllegalArgumentException;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -49,26 +58,106 @@ import java.util.logging.Logger;
 public class PortalUtil {
 
   private static Plugin plugin;
-  private static Map<Location, Portal> portals;
+  // Registered portals, sharded by world and keyed by packed keyblock
+  // coordinates.
+  private static Map<World, PortalRegistry> registries;
   private static Map<World, World> worldLinks;
   private static Map<World, World> respawnRedirects;
   private static Map<World, Integer> worldScales;
   private static Map<World, Integer> worldHeights;
   private static Map<World, Integer> compressionMethods;
-  private static Map<BlockData, World> blocksToWorlds;
+  // Destination worlds, keyed by the packed key (see BlockData) of the
+  // worldBlock that routes portals to them.
+  private static LongHashMap<World> blocksToWorlds;
   private static Map<World, BlockData> worldsToBlocks;
   private static Set<World> restrictedWorlds;
-  private static Map<Entity, Long> entityLastTeleportedTime;
-  // Map of chunks, encoded in a Location object, and a list of portals
-  // keeping that chunk loaded.
-  private static Map<Location, List<Portal>> forceLoadedChunks;
+  // The nethrar.block.<world> permission node for each world.
+  private static Map<World, String> blockPermissions;
+  // Portals whose blocks may have changed, to be revalidated next tick.
+  private static Set<Portal> portalsToRecheck;
+  // Loaded chunks waiting to be scanned for portal blocks.
+  private static Queue<Chunk> chunksToScan;
+  private static TeleportCooldowns cooldowns;
+  // Journals of the worlds whose portals are loaded, by world name, and the
+  // thread they and the portal stores are written on.
+  private static Map<String, PortalJournal> journals;
+  private static ExecutorService storageThread;
+  // Portal ids below this are reserved in the id file.
+  private static int reservedIds;
+  // The id to give the next Portal that is registered.
+  private static int nextPortalId = 1;
+  private static LongHashMap<Portal> portalsById;
+  // Saved portals that have not been activated yet, and the active portals
+  // waiting for them to be, keyed by the dormant portal's id.
+  private static DormantPortals dormantPortals;
+  private static LongHashMap<List<Portal>> awaitingCounterpart;
+  // Chunks within this radius of a portal's keyblock chunk are kept loaded
+  // while the portal is in use, counted per world by each PortalRegistry.
   private static int keepAliveRadius;
+  // Portals keeping chunks loaded, least recently used first, with the tick
+  // they were last used at.
+  private static LinkedHashMap<Portal, Long> keepAlivePortals;
+  // Number of distinct chunks kept loaded, across all worlds.
+  private static int keepAliveChunkCount;
+  // How long a portal keeps chunks loaded after it was last used, or 0 to
+  // keep them loaded for as long as the portal exists.
+  private static long keepAliveTicks = 6000;
+  // Most chunks to keep loaded at once, or 0 for no limit.
+  private static int keepAliveMaxChunks = 0;
 
   private static final Logger log = Logger.getLogger("Minecraft.Nethrar");
 
-  private static final long TELEPORT_TIMEOUT_NANOS = 500000000l;
-  private static final long CLEANUP_TIMEOUT_NANOS = 5000000000l;
-  private static long lastCleanup = 0;
+  // Cooldowns are tracked in one tick slots, 256 slots per turn.
+  private static final int COOLDOWN_WHEEL_SLOTS = 256;
+  // Server ticks since Nethrar was enabled, counted by a repeating task.
+  private static long currentTick = 0;
+  // How long to spend taking snapshots of chunks to scan each tick.
+  private static final long CHUNK_SCAN_NANOS_PER_TICK = 1000000L;
+
+  // Teleport cooldowns in ticks, per entity category.
+  private static int playerCooldownTicks = 10;
+  private static int vehicleCooldownTicks = 10;
+  private static int mobCooldownTicks = 100;
+  private static int otherCooldownTicks = 10;
+
+  // Counterpart searches that have not finished, keyed by source portal so
+  // that there is only ever one per portal, and the entities held at their
+  // source portals, keyed by entity id.
+  private static Map<Portal, CounterpartSearch> counterpartSearches;
+  private static LongHashMap<CounterpartSearch> heldEntities;
+  // Searches still waiting for chunks after this long are given up on.
+  private static final long COUNTERPART_SEARCH_TIMEOUT_TICKS = 200;
+
+  // Seconds between autosaves of the portal registry, or 0 for none.
+  private static int autosaveSeconds = 300;
+  // Journals are checkpointed once they grow past this many bytes, whether
+  // or not autosaving is on, so that they cannot grow without bound.
+  private static final long JOURNAL_COMPACT_BYTES = 256 * 1024;
+  // How often journal sizes are checked, in ticks.
+  private static final long JOURNAL_CHECK_TICKS = 20 * 60;
+
+  // Loads the chunks at the other end of portals that entities approach.
+  private static ChunkPrewarmer prewarmer;
+  // Entities within this many blocks of a portal prewarm its destination.
+  private static int prewarmRadius = 16;
+  private static int prewarmMillisPerTick = 5;
+  // Chunks within this radius of a destination's chunk are prewarmed.
+  private static final int PREWARM_CHUNK_RADIUS = 1;
+
+  // Each world's portals are stored in <world>.dat and <world>.journal in
+  // the portals directory. The id file must not end in either suffix, so
+  // that no world's files can collide with it.
+  private static final String PORTALS_DIR = "portals";
+  private static final String STORE_SUFFIX = ".dat";
+  private static final String JOURNAL_SUFFIX = ".journal";
+  private static final String IDS_FILE = "portal-ids.bin";
+  // Ids are reserved in the id file this many at a time.
+  private static final int ID_RESERVATION = 1024;
+  private static final long STORAGE_TIMEOUT_SECONDS = 30;
+  // How often idle portals are checked for, in ticks.
+  private static final long KEEP_ALIVE_SWEEP_TICKS = 20;
+  // Where older versions saved portals.
+  private static final String LEGACY_PORTALS_FILE = "portals.yml";
 
   public static final int COMPRESS_CLAMP = 0;
   public static final int COMPRESS_SCALE = 1;
@@ -97,25 +186,108 @@ public class PortalUtil {
 
     plugin = pl;
     keepAliveRadius = newKeepAliveRadius;
-    portals = new HashMap<Location, Portal>();
+    registries = new HashMap<World, PortalRegistry>();
     worldLinks = new HashMap<World, World>();
     worldScales = new HashMap<World, Integer>();
     worldHeights = new HashMap<World, Integer>();
     compressionMethods = new HashMap<World, Integer>();
     respawnRedirects = new HashMap<World, World>();
-    blocksToWorlds = new HashMap<BlockData, World>();
+    blocksToWorlds = new LongHashMap<World>();
     worldsToBlocks = new HashMap<World, BlockData>();
-    entityLastTeleportedTime = new ConcurrentHashMap<Entity, Long>();
-    forceLoadedChunks = new HashMap<Location, List<Portal>>();
+    cooldowns = new TeleportCooldowns(COOLDOWN_WHEEL_SLOTS, 1);
+    prewarmer = new ChunkPrewarmer(prewarmMillisPerTick);
+    counterpartSearches = new HashMap<Portal, CounterpartSearch>();
+    heldEntities = new LongHashMap<CounterpartSearch>();
+    currentTick = 0;
+    plugin.getServer().getScheduler().scheduleSyncRepeatingTask(
+      plugin,
+      new Runnable() {
+        public void run() {
+          currentTick++;
+        }
+      },
+      1, 1
+    );
     restrictedWorlds = new HashSet<World>();
+    blockPermissions = new HashMap<World, String>();
+    portalsToRecheck = new HashSet<Portal>();
+    chunksToScan = new ArrayDeque<Chunk>();
+    portalsById = new LongHashMap<Portal>();
+    keepAlivePortals = new LinkedHashMap<Portal, Long>(16, 0.75f, true);
+    keepAliveChunkCount = 0;
+    dormantPortals = new DormantPortals();
+    awaitingCounterpart = new LongHashMap<List<Portal>>();
 
     initializeWorlds(worldsConfig);
 
-    File portalsFile = new File(plugin.getDataFolder(), "portals.yml");
-    YamlConfiguration portalsConfig =
-      YamlConfiguration.loadConfiguration(portalsFile);
-    initializePortals(portalsConfig);
-    portalsConfig.save(portalsFile);
+    journals = new HashMap<String, PortalJournal>();
+    storageThread = PortalJournal.newIoThread();
+    importYamlPortals();
+    nextPortalId = reservedIds =
+      PortalStore.readNextId(new File(getPortalsDir(), IDS_FILE));
+
+    for (World w : plugin.getServer().getWorlds()) {
+      for (Chunk c : w.getLoadedChunks()) {
+        queueChunkScan(c);
+      }
+      loadWorldPortals(w);
+    }
+
+    plugin.getServer().getScheduler().scheduleSyncRepeatingTask(
+      plugin,
+      new Runnable() {
+        public void run() {
+          scanQueuedChunks();
+        }
+      },
+      1, 1
+    );
+
+    if (keepAliveRadius > 0 && keepAliveTicks > 0) {
+      plugin.getServer().getScheduler().scheduleSyncRepeatingTask(
+        plugin,
+        new Runnable() {
+          public void run() {
+            releaseIdlePortals();
+          }
+        },
+        KEEP_ALIVE_SWEEP_TICKS, KEEP_ALIVE_SWEEP_TICKS
+      );
+    }
+
+    // Counterpart searches load chunks through the prewarmer too.
+    plugin.getServer().getScheduler().scheduleSyncRepeatingTask(
+      plugin,
+      new Runnable() {
+        public void run() {
+          prewarmer.tick();
+          advanceCounterpartSearches();
+        }
+      },
+      1, 1
+    );
+
+    if (autosaveSeconds > 0) {
+      plugin.getServer().getScheduler().scheduleSyncRepeatingTask(
+        plugin,
+        new Runnable() {
+          public void run() {
+            autosave();
+          }
+        },
+        autosaveSeconds * 20L, autosaveSeconds * 20L
+      );
+    }
+
+    plugin.getServer().getScheduler().scheduleSyncRepeatingTask(
+      plugin,
+      new Runnable() {
+        public void run() {
+          compactJournals();
+        }
+      },
+      JOURNAL_CHECK_TICKS, JOURNAL_CHECK_TICKS
+    );
 
     return true;
   }
@@ -293,10 +465,13 @@ public class PortalUtil {
       } else {
         blockId = Integer.parseInt(blockString);
       }
-      if (blockId != -1) {
+      if (blockId != -1 && Material.getMaterial(blockId) == null) {
+        log.warning("[NETHRAR] World \"" + worldName + "\" has an " +
+                    "unknown worldBlock ID " + blockId + ", ignoring it.");
+      } else if (blockId != -1) {
         BlockData bd =
           new BlockData(Material.getMaterial(blockId), data);
-        blocksToWorlds.put(bd, world);
+        blocksToWorlds.put(bd.getKey(), world);
         worldsToBlocks.put(world, bd);
         infostr = infostr + ", world block ID " + blockId
           + ", block data " + data;
@@ -341,115 +516,425 @@ public class PortalUtil {
     }
   }
 
-  private static void initializePortals(Configuration portalConfig) {
-    Map<String, Portal> namesToPortals = new HashMap<String, Portal>();
-    Set<String> portalKeys = portalConfig.getKeys(false);
-
-    if (portals == null) {
+  /**
+   * Activates the dormant portals whose frames reach into the given chunk,
+   * if every chunk their frames are in is now loaded.
+   */
+  public static void activateDormantPortals(Chunk c) {
+    if (dormantPortals.size() == 0) {
       return;
     }
+    World w = c.getWorld();
+    for (PortalRecord r :
+         dormantPortals.getAround(w.getName(), c.getX(), c.getZ())) {
+      if (loadFrameChunks(w, r, false)) {
+        activateDormantPortal(w, r);
+      }
+    }
+  }
+
+  /**
+   * Returns whether every chunk the given portal's frame may be in is
+   * loaded, first loading them if load is set. The frame's axis is not
+   * saved, so this covers the frame lying along either axis.
+   */
+  private static boolean loadFrameChunks(World w, PortalRecord r,
+                                         boolean load) {
+    for (int cx = (r.x - 1) >> 4, endcx = (r.x + 2) >> 4; cx <= endcx; cx++) {
+      for (int cz = (r.z - 1) >> 4, endcz = (r.z + 2) >> 4; cz <= endcz;
+           cz++) {
+        if (!w.isChunkLoaded(cx, cz)) {
+          if (!load) {
+            return false;
+          }
+          w.loadChunk(cx, cz);
+        }
+      }
+    }
+    return true;
+  }
 
-    for (String portalKey : portalKeys) {
-      String worldName =
-        portalKey.substring(0, portalKey.lastIndexOf(";"));
+  /**
+   * Validates and registers the given dormant portal, loading the chunks
+   * around it if needed. Returns the activated Portal, or null if the
+   * portal no longer exists, in which case its record is dropped.
+   */
+  private static Portal activateDormantPortal(World w, PortalRecord r) {
+    // Load the chunks first, since loading them may activate the portal.
+    loadFrameChunks(w, r, true);
+    if (dormantPortals.get(r.id) != r) {
+      return portalsById.get(r.id);
+    }
+    // Registering the Portal adopts the record; see addPortal.
+    Portal p = getPortalAt(w.getBlockAt(r.x, r.y, r.z));
+    if (p == null || p.getId() != r.id) {
+      dropDormantPortal(r);
+      return null;
+    }
+    return p;
+  }
 
-      ConfigurationSection config =
-        portalConfig.getConfigurationSection(portalKey);
+  private static void dropDormantPortal(PortalRecord r) {
+    if (dormantPortals.remove(r.id) == null) {
+      return;
+    }
+    List<Portal> waiting = awaitingCounterpart.remove(r.id);
+    if (waiting != null) {
+      for (Portal p : waiting) {
+        if (p.getPendingCounterpartId() == r.id) {
+          p.setPendingCounterpartId(0);
+        }
+      }
+    }
+    PortalJournal journal = journals.get(r.worldName);
+    if (journal != null) {
+      journal.portalRemoved(r.id);
+    }
+  }
 
-      List<Integer> coords = config.getIntegerList("keyblock");
-      if (coords == null) {
-        continue;
+  /**
+   * Restores the saved state of a Portal that was just registered in place
+   * of the given dormant record: its protection, its link to its
+   * counterpart, and the links to it from portals activated before it.
+   */
+  private static void restoreDormantPortal(Portal p, PortalRecord r) {
+    if (r.protect) {
+      int[] offsets = Portal.PORTAL_BLOCK_OFFSETS;
+      World world = p.getKeyBlock().getWorld();
+      for (int j = 0; j < offsets.length; j += 2) {
+        long key = p.blockKeyAt(offsets[j], offsets[j + 1]);
+        NethrarDefaultListener.protectPortalBlock(world.getBlockAt(
+          Coords.blockX(key), Coords.blockY(key), Coords.blockZ(key)));
       }
+    }
 
-      World portalWorld = plugin.getServer().getWorld(worldName);
-      if (portalWorld == null) {
-        continue;
+    if (r.destination != 0) {
+      Portal dest = portalsById.get(r.destination);
+      if (dest != null) {
+        p.setCounterpart(dest);
+      } else {
+        // Dormant, or in a world that is not loaded.
+        awaitCounterpart(p, r.destination);
       }
+    }
 
-      Block keyBlock = portalWorld.getBlockAt(
-                                              coords.get(0), coords.get(1), coords.get(2));
-      Portal p = getPortalAt(keyBlock);
-      if (p == null) {
-        continue;
+    List<Portal> waiting = awaitingCounterpart.remove(r.id);
+    if (waiting != null) {
+      for (Portal source : waiting) {
+        if (source.getPendingCounterpartId() == r.id &&
+            isRegistered(source)) {
+          source.setCounterpart(p);
+        }
       }
+    }
+  }
 
-      addPortal(p);
-      namesToPortals.put(portalKey, p);
+  /**
+   * Unlinks the given Portal, and has it wait for the saved portal with the
+   * given id to be activated, which then becomes its counterpart.
+   */
+  private static void awaitCounterpart(Portal p, int id) {
+    stopAwaitingCounterpart(p);
+    p.setCounterpart(null);
+    p.setPendingCounterpartId(id);
+    List<Portal> waiting = awaitingCounterpart.get(id);
+    if (waiting == null) {
+      waiting = new ArrayList<Portal>(1);
+      awaitingCounterpart.put(id, waiting);
     }
-    for (String portalKey : portalKeys) {
-      ConfigurationSection config =
-        portalConfig.getConfigurationSection(portalKey);
-      String destKey = config.getString("destination");
-      boolean prot = config.getBoolean("protected");
+    waiting.add(p);
+  }
 
-      Portal source = namesToPortals.get(portalKey);
-      if (source == null) {
-        continue;
+  /** Stops the given Portal waiting for its counterpart to be activated. */
+  private static void stopAwaitingCounterpart(Portal p) {
+    int id = p.getPendingCounterpartId();
+    if (id == 0) {
+      return;
+    }
+    List<Portal> waiting = awaitingCounterpart.get(id);
+    if (waiting != null) {
+      waiting.remove(p);
+      if (waiting.isEmpty()) {
+        awaitingCounterpart.remove(id);
       }
-      source.setCounterpart(namesToPortals.get(destKey));
-      Block keyBlock = source.getKeyBlock();
-      World world = keyBlock.getWorld();
-      int destX = keyBlock.getX(),
-          destY = keyBlock.getY(),
-          destZ = keyBlock.getZ();
-      if (prot) {
-        // Build portal block set.
-        Set<Block> pBlocks = new HashSet<Block>();
-        if (source.isFacingNorth()) {
-          for (int z = destZ; z <= destZ + 1; z++) {
-            pBlocks.add(world.getBlockAt(destX, destY + 0, z));
-            pBlocks.add(world.getBlockAt(destX, destY + 1, z));
-            pBlocks.add(world.getBlockAt(destX, destY + 2, z));
-          }
-        } else {
-          for (int x = destX; x <= destX + 1; x++) {
-            pBlocks.add(world.getBlockAt(x, destY + 0, destZ));
-            pBlocks.add(world.getBlockAt(x, destY + 1, destZ));
-            pBlocks.add(world.getBlockAt(x, destY + 2, destZ));
-          }
-        }
-        for (Block b : pBlocks) {
-          NethrarDefaultListener.protectPortalBlock(b);
+    }
+  }
+
+  /**
+   * Activates the saved counterpart of the given Portal, if it has one that
+   * is still dormant. Loads the chunks around the counterpart if needed.
+   * Does nothing if the counterpart is in a world that is not loaded.
+   */
+  public static void activatePendingCounterpart(Portal p) {
+    PortalRecord r = dormantPortals.get(p.getPendingCounterpartId());
+    if (r == null) {
+      return;
+    }
+    World w = plugin.getServer().getWorld(r.worldName);
+    if (w != null) {
+      activateDormantPortal(w, r);
+    }
+  }
+
+  private static File getPortalsDir() {
+    return new File(plugin.getDataFolder(), PORTALS_DIR);
+  }
+
+  /**
+   * Moves portals saved by older versions, in portals.yml, into per-world
+   * portal stores, then renames portals.yml so that it is not imported
+   * again. Only done if there is no portals directory yet. The stores are
+   * written to a temporary directory that is only renamed into place once
+   * they are all written, so an import that fails partway is started over
+   * at the next startup.
+   */
+  private static void importYamlPortals() throws IOException {
+    File dir = getPortalsDir();
+    if (dir.exists()) {
+      return;
+    }
+    File legacyFile = new File(plugin.getDataFolder(), LEGACY_PORTALS_FILE);
+    if (!legacyFile.exists()) {
+      if (!dir.mkdirs()) {
+        throw new IOException("Could not create " + dir + ".");
+      }
+      return;
+    }
+
+    File tempDir = new File(plugin.getDataFolder(), PORTALS_DIR + ".tmp");
+    if (tempDir.exists()) {
+      // Left from an import that failed partway.
+      for (File f : tempDir.listFiles()) {
+        if (!f.delete()) {
+          throw new IOException("Could not delete " + f + ".");
         }
       }
+    } else if (!tempDir.mkdirs()) {
+      throw new IOException("Could not create " + tempDir + ".");
+    }
+
+    PortalStore.Contents old = PortalStore.importYaml(
+      YamlConfiguration.loadConfiguration(legacyFile));
+    Map<String, List<PortalRecord>> recordsByWorld =
+      new HashMap<String, List<PortalRecord>>();
+    for (PortalRecord r : old.records) {
+      List<PortalRecord> worldRecords = recordsByWorld.get(r.worldName);
+      if (worldRecords == null) {
+        worldRecords = new ArrayList<PortalRecord>();
+        recordsByWorld.put(r.worldName, worldRecords);
+      }
+      worldRecords.add(r);
+    }
+    for (Map.Entry<String, List<PortalRecord>> entry :
+         recordsByWorld.entrySet()) {
+      PortalStore.write(
+        new File(tempDir, entry.getKey() + STORE_SUFFIX),
+        new PortalStore.Contents(old.nextId, entry.getValue()));
+    }
+    PortalStore.writeNextId(new File(tempDir, IDS_FILE), old.nextId);
+    if (!tempDir.renameTo(dir)) {
+      throw new IOException("Could not rename " + tempDir + " to " + dir +
+                            ".");
+    }
+
+    if (!legacyFile.renameTo(new File(legacyFile.getPath() + ".imported"))) {
+      log.warning("[NETHRAR] Could not rename " + legacyFile.getName() +
+                  " after importing it.");
     }
+    log.info("[NETHRAR] Imported " + old.records.size() + " portals from " +
+             legacyFile.getName() + ".");
   }
 
-  public static boolean savePortals() throws IOException {
-    File portalsFile = new File(plugin.getDataFolder(), "portals.yml");
-    YamlConfiguration portalConfig = new YamlConfiguration();
+  /**
+   * Loads the saved portals of the given world as dormant records, and
+   * starts journaling changes to them. Called for each world as it loads.
+   */
+  public static void loadWorldPortals(World w) {
+    String worldName = w.getName();
+    if (journals.containsKey(worldName)) {
+      return;
+    }
+    File storeFile = new File(getPortalsDir(), worldName + STORE_SUFFIX);
+    File journalFile = new File(getPortalsDir(), worldName + JOURNAL_SUFFIX);
+    try {
+      PortalStore.Contents contents = PortalJournal.replay(
+        PortalStore.read(storeFile), journalFile);
+      nextPortalId = Math.max(nextPortalId, contents.nextId);
+      for (PortalRecord r : contents.records) {
+        dormantPortals.add(r);
+      }
+      journals.put(worldName,
+                   new PortalJournal(storageThread, storeFile, journalFile));
+    } catch (IOException e) {
+      log.severe("[NETHRAR] Could not load the portals in " + worldName +
+                 ": " + e.getMessage());
+      return;
+    }
+    for (Chunk c : w.getLoadedChunks()) {
+      activateDormantPortals(c);
+    }
+  }
 
-    savePortals(portalConfig);
+  /**
+   * Saves the portals of the given world and releases them. Links to them
+   * from other worlds are kept, and restored if the world loads again.
+   * Called for each world as it unloads.
+   */
+  public static void unloadWorldPortals(World w) {
+    String worldName = w.getName();
+    PortalJournal journal = journals.remove(worldName);
+    if (journal != null) {
+      journal.checkpoint(snapshotPortals(w));
+      journal.close();
+    }
 
-    portalConfig.save(portalsFile);
-    return true;
+    PortalRegistry registry = registries.remove(w);
+    if (registry != null) {
+      keepAliveChunkCount -= registry.getHeldChunkCount();
+      for (Portal p : registry.getPortals()) {
+        keepAlivePortals.remove(p);
+        if (portalsById.get(p.getId()) == p) {
+          portalsById.remove(p.getId());
+        }
+        stopAwaitingCounterpart(p);
+        NethrarDefaultListener.unprotectPortal(p);
+        portalsToRecheck.remove(p);
+      }
+    }
+    dormantPortals.removeWorld(worldName);
+    prewarmer.removeWorld(w);
+    for (CounterpartSearch search :
+         new ArrayList<CounterpartSearch>(counterpartSearches.values())) {
+      if (search.destWorld == w ||
+          search.source.getKeyBlock().getWorld() == w) {
+        counterpartSearches.remove(search.source);
+        releaseHeldEntities(search, false);
+      }
+    }
+
+    for (PortalRegistry other : registries.values()) {
+      for (Portal p : other.getPortals()) {
+        Portal counterpart = p.getCounterpart();
+        if (counterpart != null &&
+            counterpart.getKeyBlock().getWorld().equals(w)) {
+          awaitCounterpart(p, counterpart.getId());
+        }
+      }
+    }
   }
 
-  private static void savePortals(Configuration portalConfig) {
-    int nonce = 0;
-    Map<Portal, String> portalKeyMap = new HashMap<Portal, String>();
+  /**
+   * Returns a snapshot of every registered and dormant portal in the given
+   * world, as it would be saved. Counterparts that are no longer registered
+   * are saved as no counterpart.
+   */
+  private static PortalStore.Contents snapshotPortals(World w) {
+    List<PortalRecord> records = new ArrayList<PortalRecord>();
+    PortalRegistry registry = getRegistryFor(w, false);
+    if (registry != null) {
+      for (Portal p : registry.getPortals()) {
+        Block keyBlock = p.getKeyBlock();
+        Portal counterpart = p.getCounterpart();
+        int dest = p.getPendingCounterpartId();
+        if (counterpart != null) {
+          dest = isRegistered(counterpart) ? counterpart.getId() : 0;
+        }
+        records.add(new PortalRecord(
+          p.getId(), w.getName(),
+          keyBlock.getX(), keyBlock.getY(), keyBlock.getZ(), isProtected(p),
+          dest));
+      }
+    }
+    records.addAll(dormantPortals.getRecords(w.getName()));
+    return new PortalStore.Contents(
+      nextPortalId, Collections.unmodifiableList(records));
+  }
 
-    for (Map.Entry<Location, Portal> ent : portals.entrySet()) {
-      Portal p = ent.getValue();
-      World w = p.getKeyBlock().getWorld();
-      portalKeyMap.put(p, w.getName() + ";" + (nonce++));
+  /**
+   * Hands out a new portal id. Ids are reserved in the id file ahead of
+   * use, so that they are never reused even if the server goes down.
+   */
+  private static int newPortalId() {
+    if (nextPortalId >= reservedIds) {
+      reservedIds = nextPortalId + ID_RESERVATION;
+      final File idsFile = new File(getPortalsDir(), IDS_FILE);
+      final int reserved = reservedIds;
+      // Queued ahead of any journal entry using the new ids.
+      storageThread.execute(new Runnable() {
+        public void run() {
+          try {
+            PortalStore.writeNextId(idsFile, reserved);
+          } catch (IOException e) {
+            log.warning("[NETHRAR] Could not reserve portal ids: " +
+                        e.getMessage());
+          }
+        }
+      });
     }
+    return nextPortalId++;
+  }
 
-    for (Map.Entry<Location, Portal> ent : portals.entrySet()) {
-      Portal p = ent.getValue();
-      Location l = p.getKeyBlock().getLocation();
+  private static boolean isRegistered(Portal p) {
+    if (p == null) {
+      return false;
+    }
+    Block b = p.getKeyBlock();
+    PortalRegistry registry = getRegistryFor(b.getWorld(), false);
+    return registry != null && registry.get(b.getX(), b.getY(), b.getZ()) == p;
+  }
 
-      String portalKey = portalKeyMap.get(p);
-      String destKey = portalKeyMap.get(p.getCounterpart());
+  /**
+   * Saves a snapshot of the registry in the background, which also clears
+   * the journal. Only building the snapshot happens on the main thread.
+   */
+  private static void autosave() {
+    for (Map.Entry<String, PortalJournal> entry : journals.entrySet()) {
+      World w = plugin.getServer().getWorld(entry.getKey());
+      if (w != null) {
+        entry.getValue().checkpoint(snapshotPortals(w));
+      }
+    }
+  }
+
+  /** Checkpoints the journals that have grown past JOURNAL_COMPACT_BYTES. */
+  private static void compactJournals() {
+    for (Map.Entry<String, PortalJournal> entry : journals.entrySet()) {
+      PortalJournal journal = entry.getValue();
+      World w = plugin.getServer().getWorld(entry.getKey());
+      if (w != null &&
+          journal.getUncheckpointedBytes() >= JOURNAL_COMPACT_BYTES) {
+        journal.checkpoint(snapshotPortals(w));
+      }
+    }
+  }
 
-      int x = l.getBlockX(), y = l.getBlockY(), z = l.getBlockZ();
-      List<Integer> locCoords = Arrays.asList(x, y, z);
+  /** Returns whether the given Portal's blocks are protected from physics. */
+  private static boolean isProtected(Portal p) {
+    return p.getKeyBlock().getWorld().getEnvironment().equals(
+      Environment.THE_END);
+  }
 
-      portalConfig.set(portalKey + ".keyblock", locCoords);
-      portalConfig.set(portalKey + ".destination", destKey);
-      portalConfig.set(portalKey + ".protected",
-                       p.getKeyBlock().getWorld().getEnvironment().equals(
-                                                                          Environment.THE_END));
+  /**
+   * Writes out outstanding changes to the portal journals and closes them.
+   * Called when Nethrar is disabled.
+   */
+  public static void shutdown() {
+    if (journals == null) {
+      return;
+    }
+    for (PortalJournal journal : journals.values()) {
+      journal.close();
+    }
+    journals.clear();
+    storageThread.shutdown();
+    try {
+      if (!storageThread.awaitTermination(STORAGE_TIMEOUT_SECONDS,
+                                          TimeUnit.SECONDS)) {
+        log.severe("[NETHRAR] Timed out saving portals. Recent portal " +
+                   "changes may be lost.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
@@ -457,83 +942,152 @@ public class PortalUtil {
     return plugin;
   }
 
+  /**
+   * Returns the PortalRegistry for the given world, creating it if requested
+   * and it does not exist yet.
+   */
+  private static PortalRegistry getRegistryFor(World w, boolean create) {
+    PortalRegistry registry = registries.get(w);
+    if (registry == null && create) {
+      registry = new PortalRegistry(w);
+      registries.put(w, registry);
+    }
+    return registry;
+  }
+
   /**
    * "Registers" the Portal with the mod, and performs relevant global
    * initialization based on the new Portal.
    *
-   * Note that this does not add chunks to the keep-alive set.
+   * Chunks around the Portal are only kept loaded once it is used; see
+   * portalUsed.
    */
   public static boolean addPortal(Portal p) {
-    if (keepAliveRadius > 0) {
-      World w = p.getKeyBlock().getWorld();
-      int chunkX = p.getKeyBlock().getChunk().getX();
-      int chunkZ = p.getKeyBlock().getChunk().getZ();
-      for (int x = chunkX - keepAliveRadius + 1,
-           endx = chunkX + keepAliveRadius - 1; x <= endx; x++) {
-
-        for (int z = chunkZ - keepAliveRadius + 1,
-             endz = chunkZ + keepAliveRadius - 1; z <= endz; z++) {
-
-          Location tempLoc = new Location(w, x, 0, z);
-          List<Portal> tempList = forceLoadedChunks.get(tempLoc);
-          if (tempList == null) {
-            tempList = new LinkedList<Portal>();
-            tempList.add(p);
-            forceLoadedChunks.put(tempLoc, tempList);
-            w.loadChunk(x, z);
-          } else {
-            tempList.add(p);
-          }
-        }
-      }
-    }
-    Portal oldPortal = portals.get(p.getKeyBlock().getLocation());
+    Block b = p.getKeyBlock();
+    PortalRegistry registry = getRegistryFor(b.getWorld(), true);
+    Portal oldPortal = registry.get(b.getX(), b.getY(), b.getZ());
     if (oldPortal != null) {
       removePortal(oldPortal);
     }
-    return portals.put(p.getKeyBlock().getLocation(), p) != null;
+    PortalRecord saved = dormantPortals.getAt(
+      b.getWorld().getName(), b.getX(), b.getY(), b.getZ());
+    if (saved != null && p.getId() == 0) {
+      // A saved portal being activated; it keeps its id, and is already in
+      // the portal store.
+      dormantPortals.remove(saved.id);
+      p.setId(saved.id);
+    } else {
+      if (saved != null) {
+        dropDormantPortal(saved);
+        saved = null;
+      }
+      if (p.getId() == 0) {
+        p.setId(newPortalId());
+      }
+    }
+    boolean replaced = registry.put(p) != null;
+    portalsById.put(p.getId(), p);
+    if (keepAliveTicks == 0) {
+      // Without a keep-alive time, every portal keeps its chunks loaded.
+      portalUsed(p);
+    }
+    if (saved != null) {
+      restoreDormantPortal(p, saved);
+    } else {
+      PortalJournal journal = journals.get(b.getWorld().getName());
+      if (journal != null) {
+        journal.portalAdded(p, isProtected(p));
+      }
+    }
+    return replaced;
   }
 
   /**
    * Removes the given Portal, and updates mappings accordingly.
    *
-   * This will remove any necessary chunks from the keep-alive list.
+   * This will remove any necessary chunks from the keep-alive list. Does
+   * nothing if the Portal is not registered.
    */
   public static boolean removePortal(Portal p) {
     Block b = p.getKeyBlock();
-    if (keepAliveRadius > 0) {
-      int chunkX = b.getChunk().getX();
-      int chunkZ = b.getChunk().getZ();
-      World bWorld = b.getWorld();
-      for (int x = chunkX - keepAliveRadius + 1,
-           endx = chunkX + keepAliveRadius - 1; x <= endx; x++) {
-
-        for (int z = chunkZ - keepAliveRadius + 1,
-             endz = chunkZ + keepAliveRadius - 1; z <= endz; z++) {
-
-          Location tempLoc = new Location(bWorld, x, 0, z);
-          List<Portal> tempList = forceLoadedChunks.get(tempLoc);
-          if (tempList != null) {
-            if (!tempList.remove(p)) {
-              log.warning("Chunk location " + tempLoc + " did " +
-                          "not have the portal at " + b + " linked to " +
-                          "it.");
-            }
-            if (tempList.isEmpty()) {
-              forceLoadedChunks.remove(tempLoc);
-              bWorld.unloadChunkRequest(x, z);
-            }
-          } else {
-            log.warning("Chunk location " + tempLoc + " was not " +
-                        "kept loaded when it should have been.");
+    PortalRegistry registry = getRegistryFor(b.getWorld(), false);
+    if (registry == null || !registry.remove(p)) {
+      return false;
+    }
+    if (portalsById.get(p.getId()) == p) {
+      portalsById.remove(p.getId());
+    }
+    stopAwaitingCounterpart(p);
+    PortalJournal journal = journals.get(b.getWorld().getName());
+    if (journal != null) {
+      journal.portalRemoved(p.getId());
+    }
+    if (keepAlivePortals.remove(p) != null) {
+      releaseChunksAround(registry, p);
+    }
+    NethrarDefaultListener.unprotectPortal(p);
+    Portal counterpart = p.getCounterpart();
+    if (counterpart != null) {
+      if (counterpart.getCounterpart() == p) {
+        counterpart.setCounterpart(null);
+      }
+      p.setCounterpart(null);
+    }
+    return true;
+  }
+
+  /**
+   * Deregisters every Portal that the given block is a portal or frame block
+   * of. Used when the block is being destroyed, which breaks the portal.
+   */
+  public static void removePortalsUsing(Block b) {
+    PortalRegistry registry = getRegistryFor(b.getWorld(), false);
+    if (registry == null) {
+      return;
+    }
+    for (Portal p : registry.getPortalsUsing(b.getX(), b.getY(), b.getZ())) {
+      removePortal(p);
+    }
+  }
+
+  /**
+   * Schedules the Portals that the given block is a portal or frame block of
+   * to be revalidated on the next tick, and deregistered if they are no
+   * longer valid. Used when the block may or may not be about to change.
+   */
+  public static void recheckPortalsUsing(Block b) {
+    PortalRegistry registry = getRegistryFor(b.getWorld(), false);
+    if (registry == null) {
+      return;
+    }
+    List<Portal> affected =
+      registry.getPortalsUsing(b.getX(), b.getY(), b.getZ());
+    if (affected.isEmpty()) {
+      return;
+    }
+    boolean schedule = portalsToRecheck.isEmpty();
+    portalsToRecheck.addAll(affected);
+    if (schedule) {
+      plugin.getServer().getScheduler().scheduleSyncDelayedTask(
+        plugin,
+        new Runnable() {
+          public void run() {
+            recheckPortals();
           }
         }
-      }
+      );
     }
-    if (p.getCounterpart() != null) {
-      p.getCounterpart().setCounterpart(null);
+  }
+
+  private static void recheckPortals() {
+    List<Portal> toCheck = new ArrayList<Portal>(portalsToRecheck);
+    portalsToRecheck.clear();
+    for (Portal p : toCheck) {
+      p.frameChanged();
+      if (!p.isValid()) {
+        removePortal(p);
+      }
     }
-    return portals.remove(b.getLocation()) != null;
   }
 
   /** Attempts to remove a Portal whose keyBlock is at the given Block. */
@@ -570,14 +1124,27 @@ public class PortalUtil {
     return 0;
   }
 
+  /** Returns the permission node that blocks travel to the given world. */
+  public static String getBlockPermissionFor(World w) {
+    String node = blockPermissions.get(w);
+    if (node == null) {
+      node = "nethrar.block." + w.getName();
+      blockPermissions.put(w, node);
+    }
+    return node;
+  }
+
   public static World getRespawnWorldFor(World sourceWorld) {
     return respawnRedirects.get(sourceWorld);
   }
 
   public static World getDestWorldFor(Portal p) {
-    BlockData bd = p.getWorldBlockType();
-    if (blocksToWorlds.get(bd) != null) {
-      return blocksToWorlds.get(bd);
+    int worldBlockKey = p.getWorldBlockKey();
+    if (worldBlockKey != -1) {
+      World routed = blocksToWorlds.get(worldBlockKey);
+      if (routed != null) {
+        return routed;
+      }
     }
 
     return getDestWorldFor(p.getKeyBlock().getWorld());
@@ -611,6 +1178,21 @@ public class PortalUtil {
       return null;
     }
 
+    PortalRegistry registry = getRegistryFor(bWorld, false);
+    if (registry != null) {
+      Portal known = registry.getByPortalBlock(keyX, keyY, keyZ);
+      if (known != null) {
+        return known;
+      }
+    }
+
+    if (registry != null && registry.isKnownInvalid(keyX, keyY, keyZ)) {
+      // Part of a frame that failed validation, and nothing has changed
+      // around it since.
+      return null;
+    }
+
+    // Unknown portal.
     // Get keyBlock.
     // Look in -x direction
     while (bWorld.getBlockAt(--keyX, keyY, keyZ)
@@ -633,9 +1215,10 @@ public class PortalUtil {
 
     keyY++;
 
-    Location portalLoc = new Location(b.getWorld(), keyX, keyY, keyZ);
-
-    Portal newPortal = portals.get(portalLoc);
+    Portal newPortal = null;
+    if (registry != null) {
+      newPortal = registry.get(keyX, keyY, keyZ);
+    }
 
     if (newPortal == null) {
       // Newly entered portal.
@@ -646,11 +1229,111 @@ public class PortalUtil {
         addPortal(newPortal);
       } else {
         newPortal = null;
+        getRegistryFor(bWorld, true).markInvalid(b.getX(), b.getY(),
+                                                 b.getZ());
       }
     }
     return newPortal;
   }
 
+  /**
+   * Returns whether the chunk containing the given block coordinates may
+   * contain portal blocks. If this returns false, there is no registered
+   * portal there, and no unregistered one that a scan has found yet.
+   */
+  public static boolean mayHavePortalAt(World w, int blockX, int blockZ) {
+    PortalRegistry registry = registries.get(w);
+    return registry != null &&
+      registry.mayHavePortalBlocks(blockX >> 4, blockZ >> 4);
+  }
+
+  /**
+   * Queues the given loaded chunk to be scanned for portal blocks, to find
+   * portals that are not registered yet. The snapshot for the scan is taken
+   * on a later tick (see scanQueuedChunks), and the scan itself runs
+   * asynchronously.
+   */
+  public static void queueChunkScan(Chunk c) {
+    if (getRegistryFor(c.getWorld(), true).startScan(c.getX(), c.getZ())) {
+      chunksToScan.add(c);
+    }
+  }
+
+  /**
+   * Takes snapshots of queued chunks and starts scanning them, until the
+   * time budget for this tick is spent.
+   */
+  private static void scanQueuedChunks() {
+    if (chunksToScan.isEmpty()) {
+      return;
+    }
+    long deadline = System.nanoTime() + CHUNK_SCAN_NANOS_PER_TICK;
+    do {
+      Chunk c = chunksToScan.poll();
+      World w = c.getWorld();
+      PortalRegistry registry = getRegistryFor(w, false);
+      if (!c.isLoaded() || registry == null ||
+          !registry.isScanPending(c.getX(), c.getZ())) {
+        // Unloaded since it was queued.
+        continue;
+      }
+      plugin.getServer().getScheduler().scheduleAsyncDelayedTask(
+        plugin,
+        new ChunkPortalScanner(c.getChunkSnapshot(), w, w.getMaxHeight())
+      );
+    } while (!chunksToScan.isEmpty() && System.nanoTime() < deadline);
+  }
+
+  /** Records whether a loaded chunk has portal blocks in it. */
+  public static void chunkScanned(World w, int chunkX, int chunkZ,
+                                  boolean hasPortalBlocks) {
+    if (!w.isChunkLoaded(chunkX, chunkZ)) {
+      return;
+    }
+    getRegistryFor(w, true).chunkScanned(chunkX, chunkZ, hasPortalBlocks);
+  }
+
+  /**
+   * Records the result of a ChunkPortalScanner, on the main thread, and
+   * registers the portals it found that are not registered yet. Portals
+   * lit before Nethrar was installed, or placed without a
+   * PortalCreateEvent, are only found this way.
+   */
+  public static void chunkScanned(World w, int chunkX, int chunkZ,
+                                  long[] keyBlocks) {
+    if (!w.isChunkLoaded(chunkX, chunkZ)) {
+      return;
+    }
+    PortalRegistry registry = getRegistryFor(w, true);
+    registry.chunkScanned(chunkX, chunkZ, keyBlocks.length > 0);
+    for (long key : keyBlocks) {
+      int x = Coords.blockX(key), y = Coords.blockY(key);
+      int z = Coords.blockZ(key);
+      if (registry.getByPortalBlock(x, y, z) == null) {
+        getPortalAt(w.getBlockAt(x, y, z));
+      }
+    }
+  }
+
+  /** Forgets per-chunk state for a chunk that was unloaded. */
+  public static void chunkUnloaded(Chunk c) {
+    PortalRegistry registry = getRegistryFor(c.getWorld(), false);
+    if (registry != null) {
+      registry.chunkUnloaded(c.getX(), c.getZ());
+    }
+  }
+
+  /**
+   * Notifies Nethrar that the given block changed (or is about to change),
+   * so that any cached state about portals around it can be dropped.
+   */
+  public static void blockChanged(Block b) {
+    PortalRegistry registry = getRegistryFor(b.getWorld(), false);
+    if (registry != null) {
+      registry.blockChanged(b.getX(), b.getY(), b.getZ());
+    }
+  }
+
   /**
    * Finds or creates a portal at the destination, following Notchian-esque
    * portal creation semantics.
@@ -821,6 +1504,11 @@ public class PortalUtil {
     return getCounterpartPortalFor(source, getDestWorldFor(source));
   }
 
+  /**
+   * Finds or builds the counterpart for the given Portal in destWorld, and
+   * links the two, all on the calling thread. Portal.teleport uses
+   * findCounterpartFor instead, which searches in the background.
+   */
   public static Portal getCounterpartPortalFor(
                                                Portal source, World destWorld) {
 
@@ -829,10 +1517,228 @@ public class PortalUtil {
       return null;
     }
 
-    // Calculate the counterpart portal's keyblock location.
+    double[] target = getCounterpartTarget(source, destWorld);
+    Vector destVector = new Vector(target[0], target[1], target[2]);
+    double minDistSquared = Double.MAX_VALUE;
+    Portal candidatePortal = null;
+
+    for (int[] r : getCounterpartSearchRegions(source, destWorld)) {
+      for (Portal pp : findPortalsInRegion(
+                                           r[0], r[1], r[2], r[3], r[4], r[5], destWorld)) {
+        Vector tempVec = new Vector(pp.getKeyBlock().getX(),
+                                    pp.getKeyBlock().getY(), pp.getKeyBlock().getZ());
+        double tempDist = tempVec.distanceSquared(destVector);
+        // Need to do add'l checks here.
+        if (tempDist < minDistSquared) {
+          minDistSquared = tempDist;
+          candidatePortal = pp;
+        }
+      }
+    }
+    if (candidatePortal != null) {
+      linkPortals(source, candidatePortal);
+      return candidatePortal;
+    }
+
+    Block destBlock = destWorld.getBlockAt(
+      (int)target[0], getCounterpartSiteY(destWorld, target[1]),
+      (int)target[2]);
+
+    Portal dest = getOrCreatePortalAt(source, destBlock);
+
+    linkPortals(source, dest);
+
+    return dest;
+  }
+
+  /**
+   * Starts finding or building the counterpart for the given Portal in the
+   * background, holding the given entity at the Portal until it is done (see
+   * CounterpartSearch). If a search for the Portal is already running, the
+   * entity waits for that one instead, so that everything going through
+   * gets the same counterpart. Returns false if the Portal leads nowhere.
+   */
+  public static boolean findCounterpartFor(Portal source, Entity e) {
+    CounterpartSearch running = counterpartSearches.get(source);
+    if (running != null) {
+      holdEntity(running, e);
+      return true;
+    }
+
+    World destWorld = getDestWorldFor(source);
+    if (destWorld == null) {
+      return false;
+    }
+
+    double[] target = getCounterpartTarget(source, destWorld);
+    PortalRegistry registry = getRegistryFor(destWorld, false);
+    List<Integer> candidates = new ArrayList<Integer>();
+    List<int[]> unscanned = new ArrayList<int[]>();
+    for (int[] r : getCounterpartSearchRegions(source, destWorld)) {
+      // Portals that were never registered are looked for in the snapshots
+      // of the chunks that have not been scanned.
+      unscanned.addAll(getUnscannedParts(
+        registry, r[0], r[1], r[2], r[3], r[4], r[5]));
+      if (registry != null) {
+        for (Portal p : registry.getPortalsInRegion(
+               r[0], r[1], r[2], r[3], r[4], r[5])) {
+          Block b = p.getKeyBlock();
+          Collections.addAll(candidates, b.getX(), b.getY(), b.getZ());
+        }
+      }
+      // Saved portals are checked against the snapshots like the rest, and
+      // only activated if they are linked to.
+      for (PortalRecord rec : dormantPortals.getInRegion(
+             destWorld.getName(), r[0], r[1], r[2], r[3], r[4], r[5])) {
+        Collections.addAll(candidates, rec.x, rec.y, rec.z);
+      }
+    }
+    int[] candidateCoords = new int[candidates.size()];
+    for (int i = 0; i < candidateCoords.length; i++) {
+      candidateCoords[i] = candidates.get(i);
+    }
+
+    CounterpartSearch search = new CounterpartSearch(
+      source, destWorld, currentTick, target, (int)target[0],
+      getCounterpartSiteY(destWorld, target[1]), (int)target[2],
+      candidateCoords, unscanned);
+    holdEntity(search, e);
+    counterpartSearches.put(source, search);
+    advanceCounterpartSearch(search);
+    return true;
+  }
+
+  private static void holdEntity(CounterpartSearch search, Entity e) {
+    Vehicle vehicle = null;
+    if (e instanceof Vehicle) {
+      vehicle = (Vehicle)e;
+    } else if (e instanceof Player && ((Player)e).isInsideVehicle() &&
+               ((Player)e).getVehicle() instanceof Vehicle) {
+      vehicle = (Vehicle)((Player)e).getVehicle();
+    }
+    search.hold(e, vehicle);
+    heldEntities.put(e.getEntityId(), search);
+  }
+
+  /**
+   * Returns whether the given entity is being held at a portal until its
+   * counterpart is found.
+   */
+  public static boolean isHeld(Entity e) {
+    return heldEntities.containsKey(e.getEntityId());
+  }
+
+  /**
+   * Keeps the entities held for each counterpart search in place, and
+   * starts or gives up on the searches that are waiting.
+   */
+  private static void advanceCounterpartSearches() {
+    if (counterpartSearches.isEmpty()) {
+      return;
+    }
+    for (CounterpartSearch search :
+         new ArrayList<CounterpartSearch>(counterpartSearches.values())) {
+      search.pinHeld();
+      advanceCounterpartSearch(search);
+    }
+  }
+
+  /**
+   * Runs the given search asynchronously once the chunks it needs are
+   * loaded, or gives up on it if that takes too long.
+   */
+  private static void advanceCounterpartSearch(CounterpartSearch search) {
+    if (search.isStarted()) {
+      return;
+    }
+    if (!isRegistered(search.source) ||
+        plugin.getServer().getWorld(search.destWorld.getName()) !=
+          search.destWorld ||
+        currentTick - search.startTick > COUNTERPART_SEARCH_TIMEOUT_TICKS) {
+
+      counterpartSearches.remove(search.source);
+      releaseHeldEntities(search, false);
+      return;
+    }
+    if (search.takeSnapshots(prewarmer)) {
+      plugin.getServer().getScheduler().scheduleAsyncDelayedTask(
+        plugin, search);
+    }
+  }
+
+  /**
+   * Links the source of the given search to the counterpart it found, or
+   * builds one, then sends the entities held for it through. Called on the
+   * main thread once the search has run.
+   */
+  public static void counterpartSearchDone(CounterpartSearch search) {
+    if (counterpartSearches.get(search.source) != search) {
+      // Given up on already.
+      return;
+    }
+    counterpartSearches.remove(search.source);
+    Portal source = search.source;
+    World destWorld = search.destWorld;
+    if (isRegistered(source) && source.getCounterpart() == null &&
+        plugin.getServer().getWorld(destWorld.getName()) == destWorld) {
+
+      Block found = destWorld.getBlockAt(
+        search.getResultX(), search.getResultY(), search.getResultZ());
+      Portal dest = null;
+      switch (search.getResult()) {
+        case CounterpartSearch.FOUND_CANDIDATE:
+        case CounterpartSearch.FOUND_PORTAL_BLOCK:
+          dest = getPortalAt(found);
+          if (dest != null && dest.isValid() && dest != source) {
+            linkPortals(source, dest);
+          } else {
+            // The world changed since the snapshots were taken. The chunks
+            // are loaded now, so search again here.
+            getCounterpartPortalFor(source, destWorld);
+          }
+          break;
+        case CounterpartSearch.BUILD:
+          dest = getOrCreatePortalAt(source, found);
+          linkPortals(source, dest);
+          break;
+      }
+    }
+    releaseHeldEntities(search, source.getCounterpart() != null);
+  }
+
+  /**
+   * Lets go of the entities held for the given search, and if teleport is
+   * set, sends them through the source portal. They were pinned at the
+   * portal while held, so they are sent through wherever they are.
+   */
+  private static void releaseHeldEntities(CounterpartSearch search,
+                                          boolean teleport) {
+    World sourceWorld = search.source.getKeyBlock().getWorld();
+    for (CounterpartSearch.HeldEntity h : search.getHeld()) {
+      Entity e = h.entity;
+      if (heldEntities.get(e.getEntityId()) == search) {
+        heldEntities.remove(e.getEntityId());
+      }
+      if (h.vehicle != null && !h.vehicle.isDead()) {
+        h.vehicle.setVelocity(h.velocity);
+      }
+      if (!teleport || e.isDead() ||
+          (e instanceof Player && !((Player)e).isOnline()) ||
+          e.getWorld() != sourceWorld) {
+        continue;
+      }
+      search.source.teleport(e, e.getLocation());
+    }
+  }
+
+  /**
+   * Returns the point in destWorld that the given Portal maps to, as
+   * {x, y, z}. The counterpart is searched for around it, and built at it.
+   */
+  private static double[] getCounterpartTarget(Portal source,
+                                               World destWorld) {
     double destX, destY, destZ;
     Block sourceKeyBlock = source.getKeyBlock();
-    Block destBlock;
     World sourceWorld = sourceKeyBlock.getWorld();
 
     double scale = getScaleFor(destWorld) /
@@ -858,12 +1764,44 @@ public class PortalUtil {
         break;
     }
 
-    int heightCompressionMethod =
-      getCompressionMethodBetween(sourceWorld, destWorld);
-
     destX = Math.floor(sourceKeyBlock.getX() * scale);
     destZ = Math.floor(sourceKeyBlock.getZ() * scale);
 
+    return new double[] {destX, destY, destZ};
+  }
+
+  /** Returns the keyblock Y to build a counterpart at for the target Y. */
+  private static int getCounterpartSiteY(World destWorld, double destY) {
+    // Don't let the portal go into bedrock.
+    // Layer 6 for the portal, layer 5 for the obsidian
+    // Bedrock at layer 4 and below.
+    // Alternatively, in the Nether, layer 119 is the highest safe point
+    // for a portal keyblock to exist without accidentally nuking bedrock.
+    if (destY < 6) {
+      destY = 6;
+    }
+
+    int destHeight = getHeightFor(destWorld);
+    if (destWorld.getEnvironment().equals(Environment.NETHER) &&
+        destY > destHeight - 9) {
+
+      destY = destHeight - 9;
+    }
+    return (int)destY;
+  }
+
+  /**
+   * Returns the regions of destWorld to search for an existing portal to
+   * link the given Portal to, as {minX, minY, minZ, maxX, maxY, maxZ}, all
+   * inclusive. There are none unless destWorld is the larger one.
+   */
+  private static List<int[]> getCounterpartSearchRegions(Portal source,
+                                                         World destWorld) {
+    List<int[]> regions = new ArrayList<int[]>();
+    Block sourceKeyBlock = source.getKeyBlock();
+    double scale = getScaleFor(destWorld) /
+      (double)getScaleFor(sourceKeyBlock.getWorld());
+
     // If the destination world is 'larger', then we need to 'look around'
     // more to find potential portals to link to, based on collision
     // detection rules. Heuristic is, essentially, "If I were to step into
@@ -920,80 +1858,22 @@ public class PortalUtil {
       int[] wsdeltas = {-2,-1,0,1};
       int[] wodeltas = {2,3,-1,0, 0,2,-2,-1};
 
-      int minX, minY, minZ, maxX, maxY, maxZ, sourceX, sourceY, sourceZ;
-
-      sourceX = sourceKeyBlock.getX();
-      sourceY = sourceKeyBlock.getY();
-      sourceZ = sourceKeyBlock.getZ();
-
-      minY = sourceY - 1;
-      maxY = sourceY + 3;
-
-      Set<Portal> potentialPortals = new HashSet<Portal>();
-
       if (source.isFacingNorth()) {
-        potentialPortals.addAll(findPortalsInDeltaRegions(
-                                                          ndeltas, scale, sourceKeyBlock, destWorld));
-        potentialPortals.addAll(findPortalsInDeltaRegions(
-                                                          nsdeltas, scale, sourceKeyBlock, destWorld));
-        potentialPortals.addAll(findPortalsInDeltaRegions(
-                                                          nodeltas, scale, sourceKeyBlock, destWorld));
+        addDeltaRegions(regions, ndeltas, scale, sourceKeyBlock, destWorld);
+        addDeltaRegions(regions, nsdeltas, scale, sourceKeyBlock, destWorld);
+        addDeltaRegions(regions, nodeltas, scale, sourceKeyBlock, destWorld);
       } else {
-        potentialPortals.addAll(findPortalsInDeltaRegions(
-                                                          wdeltas, scale, sourceKeyBlock, destWorld));
-        potentialPortals.addAll(findPortalsInDeltaRegions(
-                                                          wsdeltas, scale, sourceKeyBlock, destWorld));
-        potentialPortals.addAll(findPortalsInDeltaRegions(
-                                                          wodeltas, scale, sourceKeyBlock, destWorld));
-      }
-
-      Vector destVector = new Vector(destX, destY, destZ);
-      double minDistSquared = Double.MAX_VALUE;
-      Portal candidatePortal = null;
-
-      for (Portal pp : potentialPortals) {
-        Vector tempVec = new Vector(pp.getKeyBlock().getX(),
-                                    pp.getKeyBlock().getY(), pp.getKeyBlock().getZ());
-        double tempDist = tempVec.distanceSquared(destVector);
-        // Need to do add'l checks here.
-        if (tempDist < minDistSquared) {
-          minDistSquared = tempDist;
-          candidatePortal = pp;
-        }
-      }
-      if (candidatePortal != null) {
-        linkPortals(source, candidatePortal);
-        return candidatePortal;
+        addDeltaRegions(regions, wdeltas, scale, sourceKeyBlock, destWorld);
+        addDeltaRegions(regions, wsdeltas, scale, sourceKeyBlock, destWorld);
+        addDeltaRegions(regions, wodeltas, scale, sourceKeyBlock, destWorld);
       }
     }
-
-    // Don't let the portal go into bedrock.
-    // Layer 6 for the portal, layer 5 for the obsidian
-    // Bedrock at layer 4 and below.
-    // Alternatively, in the Nether, layer 119 is the highest safe point
-    // for a portal keyblock to exist without accidentally nuking bedrock.
-    if (destY < 6) {
-      destY = 6;
-    }
-
-    if (destWorld.getEnvironment().equals(Environment.NETHER) &&
-        destY > destHeight - 9) {
-
-      destY = destHeight - 9;
-    }
-
-    destBlock = destWorld.getBlockAt((int)destX, (int)destY, (int)destZ);
-
-    Portal dest = getOrCreatePortalAt(source, destBlock);
-
-    linkPortals(source, dest);
-
-    return dest;
+    return regions;
   }
 
   /**
-   * Finds portals in the given delta regions, as defined by the code in
-   * getCounterpartPortalFor(Portal).
+   * Adds the given delta regions, as defined by the code in
+   * getCounterpartSearchRegions, to the list of regions.
    *
    * @param deltas An array specifying the closed/open range to search for
    *     for portals. The first coordinate is an inclusive delta x, the next
@@ -1003,11 +1883,9 @@ public class PortalUtil {
    * @param sourceBlock The source block whose coordinates the deltas will be
    *     applied to.
    * @param destWorld The world to search for portals.
-   * @return All portals in the delta region in the destination world.
    */
-  private static Set<Portal> findPortalsInDeltaRegions(int[] deltas,
-                                                       double scale, Block sourceBlock, World destWorld) {
-
+  private static void addDeltaRegions(List<int[]> regions, int[] deltas,
+                                      double scale, Block sourceBlock, World destWorld) {
     int minX, minY, minZ, maxX, maxY, maxZ, sourceX, sourceY, sourceZ;
     World sourceWorld = sourceBlock.getWorld();
     int compressionMethod =
@@ -1048,18 +1926,38 @@ public class PortalUtil {
       maxY = minY + 4;
     }
 
-    Set<Portal> portals = new HashSet<Portal>();
+    maxY = (maxY > destHeight ? destHeight : maxY);
 
     for (int i = 0; i < deltas.length; i += 4) {
       minX = (int)Math.ceil((sourceX + deltas[i + 0]) * scale);
       maxX = (int)Math.ceil((sourceX + deltas[i + 1]) * scale - 1);
       minZ = (int)Math.ceil((sourceZ + deltas[i + 2]) * scale);
       maxZ = (int)Math.ceil((sourceZ + deltas[i + 3]) * scale - 1);
-      portals.addAll(findPortalsInRegion(
-                                         minX, minY, minZ, maxX, maxY, maxZ, destWorld));
+      regions.add(new int[] {minX, minY, minZ, maxX, maxY, maxZ});
     }
+  }
 
-    return portals;
+  /**
+   * Returns the parts of the region, one per chunk, as {minX, minY, minZ,
+   * maxX, maxY, maxZ}, that lie in chunks the registry has no scan result
+   * for. The registry may be null, in which case no chunk has been scanned.
+   */
+  private static List<int[]> getUnscannedParts(PortalRegistry registry,
+                                               int minX, int minY, int minZ,
+                                               int maxX, int maxY, int maxZ) {
+    List<int[]> parts = new ArrayList<int[]>();
+    for (int cx = minX >> 4, endcx = maxX >> 4; cx <= endcx; cx++) {
+      for (int cz = minZ >> 4, endcz = maxZ >> 4; cz <= endcz; cz++) {
+        if (registry != null && registry.isChunkScanned(cx, cz)) {
+          continue;
+        }
+        parts.add(new int[] {
+          Math.max(minX, cx << 4), minY, Math.max(minZ, cz << 4),
+          Math.min(maxX, (cx << 4) + 15), maxY, Math.min(maxZ, (cz << 4) + 15)
+        });
+      }
+    }
+    return parts;
   }
 
   /**
@@ -1084,29 +1982,53 @@ public class PortalUtil {
 
     Set<Portal> portals = new HashSet<Portal>();
 
-    for (int x = minX; x <= maxX; x++) {
-      for (int y = minY; y <= maxY; y++) {
-        for (int z = minZ; z <= maxZ; z++) {
-          if (w.getBlockAt(x, y, z).getType()
-              .equals(Material.PORTAL)) {
+    // Saved portals in the region have to be activated to be found.
+    for (PortalRecord r : dormantPortals.getInRegion(
+           w.getName(), minX, minY, minZ, maxX, maxY, maxZ)) {
+      activateDormantPortal(w, r);
+    }
 
-            Portal tempPortal = getPortalAt(w.getBlockAt(x, y, z));
-            Block tempKeyBlock = tempPortal.getKeyBlock();
-            if (tempKeyBlock.getX() <= maxX &&
-                tempKeyBlock.getX() >= minX &&
-                tempKeyBlock.getZ() <= maxZ &&
-                tempKeyBlock.getZ() >= minZ) {
+    PortalRegistry registry = getRegistryFor(w, false);
+    if (registry == null) {
+      return portals;
+    }
 
-              portals.add(tempPortal);
-            }
-          }
-        }
+    // Only registered portals are candidates; query the spatial index rather
+    // than reading every block in the region. Candidates are still checked
+    // against the world, in case they were broken since being registered.
+    for (Portal p : registry.getPortalsInRegion(
+                                                minX, minY, minZ, maxX, maxY, maxZ)) {
+      if (p.isValid()) {
+        portals.add(p);
+      } else {
+        removePortal(p);
       }
     }
 
     return portals;
   }
 
+  /**
+   * Registers the portal lit in the given blocks, if any. Called once the
+   * portal blocks of a newly created portal exist, so that the portal is
+   * known to counterpart searches before anyone walks through it.
+   */
+  public static Portal registerPortalIn(List<Block> blocks) {
+    for (Block b : blocks) {
+      blockChanged(b);
+    }
+    for (Block b : blocks) {
+      if (b.getType().equals(Material.PORTAL)) {
+        // Even if the portal turns out to be invalid, its chunk now has
+        // portal blocks in it.
+        getRegistryFor(b.getWorld(), true).chunkScanned(
+          b.getX() >> 4, b.getZ() >> 4, true);
+        return getPortalAt(b);
+      }
+    }
+    return null;
+  }
+
   /** Links two portals together, without overriding existing linkages.
    *
    * Note: Assumes this was initiated by a player entering a, going to b.
@@ -1117,45 +2039,266 @@ public class PortalUtil {
     }
 
     if (a.getCounterpart() == null) {
+      stopAwaitingCounterpart(a);
       a.setCounterpart(b);
+      journalLink(a, b);
     }
 
     if (b.getCounterpart() == null) {
+      stopAwaitingCounterpart(b);
       b.setCounterpart(a);
+      journalLink(b, a);
     }
   }
 
-  public static boolean isChunkForcedLoaded(Chunk c) {
-    Location chunkLoc = new Location(c.getWorld(), c.getX(), 0, c.getZ());
-    return forceLoadedChunks.keySet().contains(chunkLoc);
+  private static void journalLink(Portal source, Portal dest) {
+    PortalJournal journal =
+      journals.get(source.getKeyBlock().getWorld().getName());
+    if (journal != null) {
+      journal.portalLinked(source, dest);
+    }
   }
 
-  public static void markTeleported(Entity e) {
-    markTeleported(e, TELEPORT_TIMEOUT_NANOS);
+  /**
+   * Notes that the given Portal was just used, and keeps the chunks around
+   * it loaded until it has been idle for the keep-alive time. If that puts
+   * more chunks than allowed in keep-alive, the least recently used portals
+   * stop keeping chunks loaded.
+   */
+  public static void portalUsed(Portal p) {
+    if (keepAliveRadius <= 0) {
+      return;
+    }
+    Block b = p.getKeyBlock();
+    PortalRegistry registry = getRegistryFor(b.getWorld(), false);
+    if (registry == null || registry.get(b.getX(), b.getY(), b.getZ()) != p) {
+      return;
+    }
+    if (keepAlivePortals.put(p, currentTick) != null) {
+      return;
+    }
+
+    World w = b.getWorld();
+    int chunkX = b.getX() >> 4, chunkZ = b.getZ() >> 4;
+    for (int x = chunkX - keepAliveRadius + 1,
+         endx = chunkX + keepAliveRadius - 1; x <= endx; x++) {
+
+      for (int z = chunkZ - keepAliveRadius + 1,
+           endz = chunkZ + keepAliveRadius - 1; z <= endz; z++) {
+
+        if (registry.holdChunk(x, z)) {
+          keepAliveChunkCount++;
+          w.loadChunk(x, z);
+        }
+      }
+    }
+
+    if (keepAliveMaxChunks > 0) {
+      Iterator<Portal> lru = keepAlivePortals.keySet().iterator();
+      while (keepAliveChunkCount > keepAliveMaxChunks && lru.hasNext()) {
+        Portal eldest = lru.next();
+        if (eldest == p) {
+          break;
+        }
+        lru.remove();
+        releaseChunksAround(eldest);
+      }
+    }
   }
 
-  public static void markTeleported(Entity e, long delay) {
-    entityLastTeleportedTime.put(e, System.nanoTime() + delay);
+  /** Stops portals that have been idle too long keeping chunks loaded. */
+  private static void releaseIdlePortals() {
+    Iterator<Map.Entry<Portal, Long>> lru =
+      keepAlivePortals.entrySet().iterator();
+    while (lru.hasNext()) {
+      Map.Entry<Portal, Long> entry = lru.next();
+      if (currentTick - entry.getValue() < keepAliveTicks) {
+        // Everything after this was used more recently.
+        break;
+      }
+      lru.remove();
+      releaseChunksAround(entry.getKey());
+    }
   }
 
-  public static boolean canTeleport(Entity e) {
-    Long last = entityLastTeleportedTime.get(e);
-    if (last == null) {
-      return true;
+  private static void releaseChunksAround(Portal p) {
+    PortalRegistry registry =
+      getRegistryFor(p.getKeyBlock().getWorld(), false);
+    if (registry != null) {
+      releaseChunksAround(registry, p);
+    }
+  }
+
+  private static void releaseChunksAround(PortalRegistry registry, Portal p) {
+    Block b = p.getKeyBlock();
+    World w = b.getWorld();
+    int chunkX = b.getX() >> 4, chunkZ = b.getZ() >> 4;
+    for (int x = chunkX - keepAliveRadius + 1,
+         endx = chunkX + keepAliveRadius - 1; x <= endx; x++) {
+
+      for (int z = chunkZ - keepAliveRadius + 1,
+           endz = chunkZ + keepAliveRadius - 1; z <= endz; z++) {
+
+        if (!registry.isChunkHeld(x, z)) {
+          log.warning("[NETHRAR] Chunk " + x + ", " + z + " in " +
+                      w.getName() + " was not kept loaded when it should " +
+                      "have been.");
+        } else if (registry.releaseChunk(x, z)) {
+          keepAliveChunkCount--;
+          w.unloadChunkRequest(x, z);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets how long, in seconds, a portal keeps the chunks around it loaded
+   * after it was last used, and the most chunks to keep loaded at once. 0
+   * means forever and no limit, respectively.
+   */
+  public static void setKeepAliveLimits(int seconds, int maxChunks) {
+    keepAliveTicks = Math.max(0, seconds) * 20L;
+    keepAliveMaxChunks = Math.max(0, maxChunks);
+  }
+
+  public static boolean isChunkForcedLoaded(Chunk c) {
+    if (keepAliveRadius <= 0) {
+      return false;
+    }
+    PortalRegistry registry = getRegistryFor(c.getWorld(), false);
+    return registry != null && registry.isChunkHeld(c.getX(), c.getZ());
+  }
+
+  /**
+   * Sets the teleport cooldowns, in ticks, for players, vehicles, mobs (as
+   * they come out of a portal), and everything else.
+   */
+  public static void setCooldownTicks(int player, int vehicle, int mob,
+                                      int other) {
+    playerCooldownTicks = player;
+    vehicleCooldownTicks = vehicle;
+    mobCooldownTicks = mob;
+    otherCooldownTicks = other;
+  }
+
+  /**
+   * Starts loading the chunks at the other end of each portal that an
+   * entity moving from one location to the other is near and getting closer
+   * to, so that they are loaded by the time it goes through.
+   */
+  public static void prewarmFor(Location from, Location to) {
+    World w = to.getWorld();
+    if (prewarmRadius <= 0 || from.getWorld() != w) {
+      return;
+    }
+    int x = to.getBlockX(), y = to.getBlockY(), z = to.getBlockZ();
+    PortalRegistry registry = getRegistryFor(w, false);
+    if (registry == null ||
+        !registry.hasPortalsNear(x >> 4, z >> 4,
+                                 (prewarmRadius + 15) >> 4)) {
+      return;
     }
-    long now = System.nanoTime();
-    boolean result = now > last;
-    if (now - lastCleanup > CLEANUP_TIMEOUT_NANOS) {
-      lastCleanup = now;
-      Map<Entity, Long> old = entityLastTeleportedTime;
-      entityLastTeleportedTime = new ConcurrentHashMap<Entity, Long>();
-      for (Entity eOld : old.keySet()) {
-        long eTime = old.get(eOld);
-        if (now < eTime) {
-          entityLastTeleportedTime.put(eOld, eTime);
+
+    List<Portal> nearby = registry.getPortalsInRegion(
+      x - prewarmRadius, y - prewarmRadius, z - prewarmRadius,
+      x + prewarmRadius, y + prewarmRadius, z + prewarmRadius);
+
+    for (Portal p : nearby) {
+      Block b = p.getKeyBlock();
+      Location center =
+        new Location(w, b.getX() + 0.5, b.getY() + 1.5, b.getZ() + 0.5);
+      if (to.distanceSquared(center) >= from.distanceSquared(center)) {
+        // Not heading toward this portal.
+        continue;
+      }
+      Location dest = getCounterpartLocationFor(p);
+      if (dest == null) {
+        continue;
+      }
+      int chunkX = dest.getBlockX() >> 4, chunkZ = dest.getBlockZ() >> 4;
+      for (int cx = chunkX - PREWARM_CHUNK_RADIUS;
+           cx <= chunkX + PREWARM_CHUNK_RADIUS; cx++) {
+
+        for (int cz = chunkZ - PREWARM_CHUNK_RADIUS;
+             cz <= chunkZ + PREWARM_CHUNK_RADIUS; cz++) {
+
+          prewarmer.request(dest.getWorld(), cx, cz);
         }
       }
     }
-    return result;
+  }
+
+  /**
+   * Returns where the given Portal leads: its counterpart's keyblock, the
+   * saved counterpart it is waiting for, or otherwise the spot in the
+   * destination world where getCounterpartPortalFor would look for one.
+   * Returns null if it leads nowhere that can be loaded.
+   */
+  private static Location getCounterpartLocationFor(Portal p) {
+    Portal counterpart = p.getCounterpart();
+    if (counterpart != null) {
+      return counterpart.getKeyBlock().getLocation();
+    }
+    if (p.getPendingCounterpartId() != 0) {
+      PortalRecord r = dormantPortals.get(p.getPendingCounterpartId());
+      World w = r == null ? null : plugin.getServer().getWorld(r.worldName);
+      return w == null ? null : new Location(w, r.x, r.y, r.z);
+    }
+
+    World destWorld = getDestWorldFor(p);
+    if (destWorld == null) {
+      return null;
+    }
+    Block b = p.getKeyBlock();
+    double scale = getScaleFor(destWorld) / (double)getScaleFor(b.getWorld());
+    return new Location(destWorld, Math.floor(b.getX() * scale), b.getY(),
+                        Math.floor(b.getZ() * scale));
+  }
+
+  /** Sets the time between autosaves, in seconds. 0 disables autosaving. */
+  public static void setAutosaveSeconds(int seconds) {
+    autosaveSeconds = Math.max(0, seconds);
+  }
+
+  /**
+   * Sets how close, in blocks, an entity must be to a portal before the
+   * chunks at its other end are loaded, and the most time to spend loading
+   * them on the main thread each tick. A radius of 0 disables prewarming.
+   */
+  public static void setPrewarmLimits(int radius, int millisPerTick) {
+    prewarmRadius = Math.max(0, radius);
+    prewarmMillisPerTick = Math.max(0, millisPerTick);
+  }
+
+  /** Returns the number of server ticks since Nethrar was enabled. */
+  public static long getCurrentTick() {
+    return currentTick;
+  }
+
+  private static int getCooldownTicksFor(Entity e) {
+    if (e instanceof Player) {
+      return playerCooldownTicks;
+    }
+    if (e instanceof Vehicle && !(e instanceof Pig)) {
+      return vehicleCooldownTicks;
+    }
+    if (e instanceof Animals || e instanceof Monster) {
+      return mobCooldownTicks;
+    }
+    return otherCooldownTicks;
+  }
+
+  /** Puts the entity on its category's teleport cooldown. */
+  public static void markTeleported(Entity e) {
+    markTeleported(e, getCooldownTicksFor(e));
+  }
+
+  /** Puts the entity on a teleport cooldown of the given number of ticks. */
+  public static void markTeleported(Entity e, long ticks) {
+    cooldowns.mark(e.getEntityId(), currentTick + ticks, currentTick);
+  }
+
+  public static boolean canTeleport(Entity e) {
+    return cooldowns.canTeleport(e.getEntityId(), currentTick);
   }
 }
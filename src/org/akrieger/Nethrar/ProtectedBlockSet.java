@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+/**
+ * Set of protected blocks in a single world.
+ *
+ * Blocks are stored by packed coordinates (see Coords) in per-chunk sets, so
+ * that checking a block in a chunk with no protected blocks costs a single
+ * probe.
+ *
+ * @author Andrew Krieger
+ */
+public class ProtectedBlockSet {
+
+  private final LongHashMap<LongIntMap> blocksByChunk =
+    new LongHashMap<LongIntMap>();
+  private int size;
+
+  /** Adds the block, returning whether it was not already in the set. */
+  public boolean add(int x, int y, int z) {
+    long chunkKey = Coords.chunkKeyAt(x, z);
+    LongIntMap blocks = this.blocksByChunk.get(chunkKey);
+    if (blocks == null) {
+      blocks = new LongIntMap();
+      this.blocksByChunk.put(chunkKey, blocks);
+    }
+    long key = Coords.blockKey(x, y, z);
+    if (blocks.containsKey(key)) {
+      return false;
+    }
+    blocks.put(key, 1);
+    this.size++;
+    return true;
+  }
+
+  /** Removes the block, returning whether it was in the set. */
+  public boolean remove(int x, int y, int z) {
+    long chunkKey = Coords.chunkKeyAt(x, z);
+    LongIntMap blocks = this.blocksByChunk.get(chunkKey);
+    if (blocks == null || !blocks.remove(Coords.blockKey(x, y, z))) {
+      return false;
+    }
+    if (blocks.isEmpty()) {
+      this.blocksByChunk.remove(chunkKey);
+    }
+    this.size--;
+    return true;
+  }
+
+  public boolean contains(int x, int y, int z) {
+    LongIntMap blocks = this.blocksByChunk.get(Coords.chunkKeyAt(x, z));
+    return blocks != null && blocks.containsKey(Coords.blockKey(x, y, z));
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+}
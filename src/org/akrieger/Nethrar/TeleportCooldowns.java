@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-present Andrew Krieger.
+ */
+
+package org.akrieger.Nethrar;
+
+/**
+ * Tracks which entities teleported recently, and until when.
+ *
+ * Entities are tracked by entity id, so no references to them are kept.
+ * Cooldowns are kept on a hashed timing wheel: each cooldown sits in the slot
+ * its deadline falls in, and as time advances the slots passed over are
+ * swept and their expired entries dropped. Marking an entity, checking it and
+ * expiring it are all O(1), and the tracker never has to be rebuilt.
+ *
+ * Times are in arbitrary non-negative units, as long as they only increase.
+ *
+ * @author Andrew Krieger
+ */
+public class TeleportCooldowns {
+
+  private static class Entry {
+    long id;
+    long deadline;
+    int slot;
+    Entry prev, next;
+  }
+
+  private final LongHashMap<Entry> entries = new LongHashMap<Entry>();
+  private final Entry[] slots;
+  private final int mask;
+  private final long slotWidth;
+  // The last time slot (time / slotWidth) that has been swept. Slots are only
+  // swept once they have fully passed.
+  private long sweptTo = Long.MIN_VALUE;
+
+  /**
+   * @param wheelSize The number of slots in the wheel. Rounded up to a power
+   *     of two.
+   * @param slotWidth The length of time covered by each slot.
+   */
+  public TeleportCooldowns(int wheelSize, long slotWidth) {
+    int size = 1;
+    while (size < wheelSize) {
+      size <<= 1;
+    }
+    this.slots = new Entry[size];
+    this.mask = size - 1;
+    this.slotWidth = slotWidth;
+  }
+
+  /** Puts the given entity on cooldown until the given time. */
+  public void mark(long id, long until, long now) {
+    advance(now);
+    Entry e = this.entries.get(id);
+    if (e == null) {
+      e = new Entry();
+      e.id = id;
+      this.entries.put(id, e);
+    } else {
+      unlink(e);
+    }
+    e.deadline = until;
+    link(e);
+  }
+
+  /** Returns whether the given entity's cooldown has passed. */
+  public boolean canTeleport(long id, long now) {
+    advance(now);
+    Entry e = this.entries.get(id);
+    return e == null || now > e.deadline;
+  }
+
+  public int size() {
+    return this.entries.size();
+  }
+
+  /** Sweeps the slots that have passed since the last sweep. */
+  private void advance(long now) {
+    long target = now / this.slotWidth - 1;
+    if (this.sweptTo == Long.MIN_VALUE || target - this.sweptTo > this.mask) {
+      // First use, or long enough since the last sweep that every slot is
+      // due; sweep each slot once.
+      this.sweptTo = target - this.mask - 1;
+    }
+    while (this.sweptTo < target) {
+      this.sweptTo++;
+      sweep((int)(this.sweptTo & this.mask), now);
+    }
+  }
+
+  private void sweep(int slot, long now) {
+    Entry e = this.slots[slot];
+    while (e != null) {
+      Entry next = e.next;
+      // Entries more than one turn of the wheel out stay for a later pass.
+      if (now > e.deadline) {
+        unlink(e);
+        this.entries.remove(e.id);
+      }
+      e = next;
+    }
+  }
+
+  private void link(Entry e) {
+    e.slot = (int)((e.deadline / this.slotWidth) & this.mask);
+    e.prev = null;
+    e.next = this.slots[e.slot];
+    if (e.next != null) {
+      e.next.prev = e;
+    }
+    this.slots[e.slot] = e;
+  }
+
+  private void unlink(Entry e) {
+    if (e.prev != null) {
+      e.prev.next = e.next;
+    } else {
+      this.slots[e.slot] = e.next;
+    }
+    if (e.next != null) {
+      e.next.prev = e.prev;
+    }
+    e.prev = e.next = null;
+  }
+}